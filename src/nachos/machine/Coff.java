@@ -3,6 +3,9 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * A COFF (common object file format) loader.
@@ -32,6 +35,12 @@ public class Coff {
      * complete. Do not supply a file backed by a simulated cache (the primary
      * purpose of this restriction is to prevent sections from being loaded
      * instantaneously while handling page faults).
+     * <li>The parsed headers of recently loaded executables are cached, keyed
+     * by file name and checked against the file's length and modification
+     * stamp, along with the page images read through
+     * <tt>CoffSection.loadPage()</tt>. Loading a cached executable reads
+     * nothing from the file. <tt>Coff.cacheSize</tt> sets how many
+     * executables are kept; 0 disables the cache.
      * </ol>
      *
      * @param    file    the file containing the executable.
@@ -45,7 +54,24 @@ public class Coff {
         if (coff != null) {
             this.entryPoint = coff.entryPoint;
             this.sections = coff.sections;
+            return;
+        }
+
+        String key = file.getName();
+        long modified = file.lastModified();
+        Coff cached = getCache().get(key);
+
+        if (cached != null && modified != -1 &&
+                cached.length == file.length() && cached.modified == modified) {
+            numCacheHits++;
+
+            entryPoint = cached.entryPoint;
+            sections = new CoffSection[cached.sections.length];
+            for (int s = 0; s < sections.length; s++)
+                sections[s] = new CoffSection(file, this, cached.sections[s]);
         } else {
+            numCacheMisses++;
+
             byte[] headers = new byte[headerLength + aoutHeaderLength];
 
             if (file.length() < headers.length) {
@@ -87,9 +113,54 @@ public class Coff {
                     throw e;
                 }
             }
+
+            if (modified != -1 && maxCacheSize > 0) {
+                Coff entry = new Coff();
+                entry.entryPoint = entryPoint;
+                entry.sections = sections;
+                entry.length = file.length();
+                entry.modified = modified;
+                cache.put(key, entry);
+            } else {
+                cache.remove(key);
+                for (CoffSection section : sections)
+                    section.pageImages = null;
+            }
         }
     }
 
+    private static Map<String, Coff> getCache() {
+        // created on first use, once the configuration has been loaded
+        if (cache == null) {
+            maxCacheSize = Config.getInteger("Coff.cacheSize", 16);
+            cache = new LinkedHashMap<String, Coff>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, Coff> e) {
+                    return size() > maxCacheSize;
+                }
+            };
+        }
+
+        return cache;
+    }
+
+    /**
+     * Return the number of executables whose headers were found in the cache.
+     *
+     * @return the number of cache hits.
+     */
+    public static int getCacheHits() {
+        return numCacheHits;
+    }
+
+    /**
+     * Return the number of executables that had to be parsed from their file.
+     *
+     * @return the number of cache misses.
+     */
+    public static int getCacheMisses() {
+        return numCacheMisses;
+    }
+
     /**
      * Return the number of sections in the executable.
      *
@@ -113,6 +184,94 @@ public class Coff {
         return sections[sectionNumber];
     }
 
+    /**
+     * Load many pages of this executable into physical memory at once. This
+     * has the same effect as calling <tt>CoffSection.loadPage()</tt> for
+     * each page, but every page that is not in the cache is fetched by a
+     * single read covering them all. If the pages are stored back to back in
+     * the file and in physical memory, that read goes straight into main
+     * memory; otherwise it is staged in a buffer and copied.
+     *
+     * @param    sectionNumbers    the section of each page.
+     * @param    spns    the page number of each page within its section.
+     * @param    ppns    the physical page to load each page into.
+     * @param    count    the number of pages to load.
+     */
+    public void loadPages(int[] sectionNumbers, int[] spns, int[] ppns,
+                          int count) {
+        Lib.assertTrue(file != null);
+
+        int pageSize = Processor.pageSize;
+        byte[] memory = Machine.processor().getMemory();
+
+        // work out which pages need the file, and the extent that covers them
+        int[] faddrs = new int[count];
+        int[] initlens = new int[count];
+        int start = Integer.MAX_VALUE, end = 0;
+        int first = -1, previous = -1;
+        boolean contiguous = true;
+
+        for (int i = 0; i < count; i++) {
+            CoffSection section = getSection(sectionNumbers[i]);
+            Lib.assertTrue(spns[i] >= 0 && spns[i] < section.getLength());
+            Lib.assertTrue(ppns[i] >= 0 &&
+                    ppns[i] < Machine.processor().getNumPhysPages());
+
+            int initlen = section.getInitializedLength(spns[i]);
+            if (initlen == 0 || (section.pageImages != null &&
+                    section.pageImages[spns[i]] != null)) {
+                section.loadPage(spns[i], ppns[i]);
+                continue;
+            }
+
+            faddrs[i] = section.getPageOffset(spns[i]);
+            initlens[i] = initlen;
+
+            if (first == -1) {
+                first = i;
+            } else if (initlens[previous] != pageSize ||
+                    faddrs[i] != faddrs[previous] + pageSize ||
+                    ppns[i] != ppns[previous] + 1) {
+                contiguous = false;
+            }
+            previous = i;
+
+            start = Math.min(start, faddrs[i]);
+            end = Math.max(end, faddrs[i] + initlen);
+        }
+
+        if (first == -1)
+            return;
+
+        if (contiguous) {
+            Lib.strictReadFile(file, start, memory, ppns[first] * pageSize,
+                    end - start);
+        } else {
+            byte[] buf = new byte[end - start];
+            Lib.strictReadFile(file, start, buf, 0, end - start);
+
+            for (int i = first; i <= previous; i++) {
+                if (initlens[i] > 0)
+                    System.arraycopy(buf, faddrs[i] - start, memory,
+                            ppns[i] * pageSize, initlens[i]);
+            }
+        }
+
+        for (int i = first; i <= previous; i++) {
+            if (initlens[i] == 0)
+                continue;
+
+            CoffSection section = getSection(sectionNumbers[i]);
+            int paddr = ppns[i] * pageSize;
+            Arrays.fill(memory, paddr + initlens[i], paddr + pageSize,
+                    (byte) 0);
+
+            if (section.pageImages != null)
+                section.pageImages[spns[i]] = Arrays.copyOfRange(memory,
+                        paddr, paddr + initlens[i]);
+        }
+    }
+
     /**
      * Return the program entry point. This is the value that to which the PC
      * register should be initialized to before running the program.
@@ -146,6 +305,13 @@ public class Coff {
      */
     protected CoffSection sections[];
 
+    private int length;
+    private long modified;
+
+    private static Map<String, Coff> cache = null;
+    private static int maxCacheSize;
+    private static int numCacheHits = 0, numCacheMisses = 0;
+
     private static final int headerLength = 20;
     private static final int aoutHeaderLength = 28;
 
@@ -34,6 +34,7 @@ public class CoffSection {
         size = 0;
         contentOffset = 0;
         initialized = true;
+        pageImages = new byte[numPages][];
     }
 
     /**
@@ -107,6 +108,31 @@ public class CoffSection {
 
         numPages = Lib.divRoundUp(size, Processor.pageSize);
         firstVPN = vaddr / Processor.pageSize;
+        pageImages = new byte[numPages][];
+    }
+
+    /**
+     * Make a copy of a section that was loaded from another instance of the
+     * same executable. The copy shares the original's page images, so a page
+     * loaded through either one is not read from the file again.
+     *
+     * @param    file        the file containing the executable.
+     * @param    coff        the COFF object to which the copy belongs.
+     * @param    section        the section to copy.
+     */
+    CoffSection(OpenFile file, Coff coff, CoffSection section) {
+        this.file = file;
+        this.coff = coff;
+
+        name = section.name;
+        executable = section.executable;
+        readOnly = section.readOnly;
+        initialized = section.initialized;
+        numPages = section.numPages;
+        firstVPN = section.firstVPN;
+        size = section.size;
+        contentOffset = section.contentOffset;
+        pageImages = section.pageImages;
     }
 
     /**
@@ -181,24 +207,54 @@ public class CoffSection {
         int pageSize = Processor.pageSize;
         byte[] memory = Machine.processor().getMemory();
         int paddr = ppn * pageSize;
-        int faddr = contentOffset + spn * pageSize;
-        int initlen;
+        int faddr = getPageOffset(spn);
+        int initlen = getInitializedLength(spn);
+
+        if (initlen > 0 && pageImages != null && pageImages[spn] != null) {
+            // a cached page still costs the kernel a tick to copy
+            boolean intStatus = Machine.interrupt().disable();
+            System.arraycopy(pageImages[spn], 0, memory, paddr, initlen);
+            Machine.interrupt().restore(intStatus);
+        } else if (initlen > 0) {
+            Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+            if (pageImages != null)
+                pageImages[spn] =
+                        Arrays.copyOfRange(memory, paddr, paddr + initlen);
+        }
+
+        Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+    }
+
+    /**
+     * Return the offset in the executable of the contents of a page.
+     *
+     * @param    spn    the page number within this segment.
+     * @return    the file offset of the page.
+     */
+    int getPageOffset(int spn) {
+        return contentOffset + spn * Processor.pageSize;
+    }
+
+    /**
+     * Return the number of bytes of a page that are stored in the executable.
+     * The rest of the page is zero-filled.
+     *
+     * @param    spn    the page number within this segment.
+     * @return    the number of initialized bytes in the page.
+     */
+    int getInitializedLength(int spn) {
+        int pageSize = Processor.pageSize;
 
         if (!initialized)
-            initlen = 0;
+            return 0;
         else if (spn == numPages - 1)
         /** initlen = size % pageSize;
          *  Bug identified by Steven Schlansker 3/20/08
          *  Bug fix by Michael Rauser
          */
-            initlen = (size == pageSize) ? pageSize : (size % pageSize);
+            return (size == pageSize) ? pageSize : (size % pageSize);
         else
-            initlen = pageSize;
-
-        if (initlen > 0)
-            Lib.strictReadFile(file, faddr, memory, paddr, initlen);
-
-        Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+            return pageSize;
     }
 
     /**
@@ -233,6 +289,11 @@ public class CoffSection {
 
     private OpenFile file;
     private int contentOffset, size;
+    /**
+     * The contents of the pages loaded so far, shared with every copy of this
+     * section, or <tt>null</tt> if the executable is not cached.
+     */
+    byte[][] pageImages;
 
     /**
      * The length of a COFF section header.
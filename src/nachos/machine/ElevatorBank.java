@@ -7,7 +7,8 @@ import nachos.threads.KThread;
 import nachos.threads.Semaphore;
 
 import java.util.Vector;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
 
 /**
@@ -113,6 +114,12 @@ public final class ElevatorBank implements Runnable {
         riders = new RiderState[numRiders];
         ridersVector.toArray(riders);
 
+        ridersOnFloor = new ArrayList<ArrayList<RiderState>>(numFloors);
+        for (int floor = 0; floor < numFloors; floor++)
+            ridersOnFloor.add(new ArrayList<RiderState>());
+        for (int i = 0; i < numRiders; i++)
+            riders[i].arriveOnFloor();
+
         if (enableGui) {
             privilege.doPrivileged(new Runnable() {
                 public void run() {
@@ -154,6 +161,11 @@ public final class ElevatorBank implements Runnable {
         new ElevatorTest().run();
     }
 
+    /**
+     * Post an event to the riders it concerns: those in the elevator, and
+     * those waiting on the floor. Riders are indexed by both, so this costs
+     * time in the number of riders told, not the number in the simulation.
+     */
     void postRiderEvent(int event, int floor, int elevator) {
         int direction = dirNeither;
         if (elevator != -1) {
@@ -162,14 +174,14 @@ public final class ElevatorBank implements Runnable {
         }
 
         RiderEvent e = new RiderEvent(event, floor, elevator, direction);
-        for (int i = 0; i < numRiders; i++) {
-            RiderState rider = riders[i];
-            if ((rider.inElevator && rider.elevator == e.elevator) ||
-                    (!rider.inElevator && rider.floor == e.floor)) {
-                rider.events.add(e);
-                rider.schedule(1);
-            }
+
+        if (elevator != -1) {
+            for (RiderState rider : elevators[elevator].riders)
+                rider.postEvent(e);
         }
+
+        for (RiderState rider : ridersOnFloor.get(floor))
+            rider.postEvent(e);
     }
 
     private class ElevatorManager implements ElevatorControls {
@@ -269,7 +281,7 @@ public final class ElevatorBank implements Runnable {
             if (events.isEmpty())
                 return null;
             else
-                return (ElevatorEvent) events.removeFirst();
+                return events.removeFirst();
         }
 
         void schedule(int when) {
@@ -325,7 +337,7 @@ public final class ElevatorBank implements Runnable {
         KThread thread;
 
         Runnable handler = null;
-        LinkedList<ElevatorEvent> events = new LinkedList<ElevatorEvent>();
+        ArrayDeque<ElevatorEvent> events = new ArrayDeque<ElevatorEvent>();
         Semaphore done = new Semaphore(0);
         boolean finished = false;
     }
@@ -479,7 +491,7 @@ public final class ElevatorBank implements Runnable {
             if (events.isEmpty())
                 return null;
             else
-                return (RiderEvent) events.removeFirst();
+                return events.removeFirst();
         }
 
         public boolean pressDirectionButton(boolean up) {
@@ -536,6 +548,7 @@ public final class ElevatorBank implements Runnable {
             if (gui != null)
                 gui.enterElevator(floor, elevator);
 
+            leaveFloor();
             inElevator = true;
             this.elevator = elevator;
             return true;
@@ -564,6 +577,7 @@ public final class ElevatorBank implements Runnable {
                 return false;
 
             inElevator = false;
+            arriveOnFloor();
             floors.add(new Integer(floor));
 
             if (gui != null)
@@ -590,6 +604,33 @@ public final class ElevatorBank implements Runnable {
             privilege.interrupt.schedule(when, "rider", interrupt);
         }
 
+        void postEvent(RiderEvent e) {
+            events.add(e);
+            schedule(1);
+        }
+
+        /**
+         * Add this rider to the index of riders waiting on its floor.
+         */
+        void arriveOnFloor() {
+            ArrayList<RiderState> waiting = ridersOnFloor.get(floor);
+            floorSlot = waiting.size();
+            waiting.add(this);
+        }
+
+        /**
+         * Remove this rider from the index of riders waiting on its floor,
+         * moving the last rider there into its slot.
+         */
+        void leaveFloor() {
+            ArrayList<RiderState> waiting = ridersOnFloor.get(floor);
+            RiderState last = waiting.remove(waiting.size() - 1);
+            if (last != this) {
+                waiting.set(floorSlot, last);
+                last.floorSlot = floorSlot;
+            }
+        }
+
         void interrupt() {
             if (!finished && !events.isEmpty() && handler != null)
                 handler.run();
@@ -612,9 +653,10 @@ public final class ElevatorBank implements Runnable {
         RiderInterface rider;
         boolean inElevator = false, finished = false;
         int floor, elevator;
+        int floorSlot;    // index in ridersOnFloor, while not in an elevator
         int[] stops;
         Runnable interrupt, handler = null;
-        LinkedList<RiderEvent> events = new LinkedList<RiderEvent>();
+        ArrayDeque<RiderEvent> events = new ArrayDeque<RiderEvent>();
         Vector<Integer> floors = new Vector<Integer>();
         Semaphore done = new Semaphore(0);
         KThread thread;
@@ -627,6 +669,10 @@ public final class ElevatorBank implements Runnable {
     private int numRiders;
     private Vector<RiderControls> ridersVector;
     private RiderState[] riders;
+    /**
+     * The riders on each floor that are not in an elevator.
+     */
+    private ArrayList<ArrayList<RiderState>> ridersOnFloor;
 
     private boolean simulationStarted, enableGui;
     private Privilege privilege;
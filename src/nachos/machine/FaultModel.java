@@ -0,0 +1,214 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Decides what the network does to each packet a link sends: drop it,
+ * duplicate it, let the packets behind it overtake it, or hold it back for a
+ * while. Each link has its own model, with its own random number generator,
+ * so its decisions depend only on its seed and on the order of its own
+ * packets, and not on anything else that uses <tt>Lib.random()</tt>.
+ *
+ * <p>
+ * The model is set in <tt>nachos.conf</tt>. Every key can be given for all
+ * links, e.g. <tt>NetworkLink.duplicate</tt>, or for the link with a
+ * particular address, e.g. <tt>NetworkLink.duplicate.3</tt>:
+ *
+ * <table>
+ * <tr><td>key</td><td>meaning</td></tr>
+ * <tr><td><tt>reliability</tt></td><td>probability a packet is not
+ * dropped</td></tr>
+ * <tr><td><tt>duplicate</tt></td><td>probability a packet is sent
+ * twice</td></tr>
+ * <tr><td><tt>reorder</tt></td><td>probability a packet is sent after the
+ * rest of the packets sent with it</td></tr>
+ * <tr><td><tt>delay</tt></td><td>probability a packet is held back</td></tr>
+ * <tr><td><tt>maxDelay</tt></td><td>the most ticks a packet is held back;
+ * the delay is uniform between 1 and this</td></tr>
+ * <tr><td><tt>faultSeed</tt></td><td>seed for the link's random number
+ * generator, to which its address is added</td></tr>
+ * </table>
+ *
+ * <p>
+ * If <tt>NetworkLink.faultLog</tt> names a file, every decision is written to
+ * it, one line per packet: the link address, the packet's number on that
+ * link, and either <tt>drop</tt> or <tt>send</tt> followed by any of
+ * <tt>dup</tt>, <tt>reorder</tt> and <tt>delay=</tt><i>ticks</i>. If
+ * <tt>NetworkLink.faultReplay</tt> names such a file, the decisions are read
+ * from it instead of being made at random, so that a run of a deterministic
+ * kernel on the <tt>loopback</tt> fabric can be repeated exactly.
+ */
+public final class FaultModel {
+    /**
+     * Allocate the fault model for the link with the specified address.
+     *
+     * @param    privilege    used to open the log and replay files.
+     * @param    linkAddress    the address of the link.
+     */
+    FaultModel(nachos.security.Privilege privilege, int linkAddress) {
+        this.linkAddress = linkAddress;
+
+        reliability = getDouble("reliability", 1.0);
+        duplicate = getDouble("duplicate", 0.0);
+        reorder = getDouble("reorder", 0.0);
+        delay = getDouble("delay", 0.0);
+        maxDelay = getInteger("maxDelay", 1000);
+        Lib.assertTrue(reliability > 0 && reliability <= 1.0);
+        Lib.assertTrue(duplicate >= 0 && reorder >= 0 && delay >= 0);
+        Lib.assertTrue(maxDelay > 0);
+
+        random = new Random(getInteger("faultSeed", 0) + linkAddress);
+
+        final String logName = Config.getString("NetworkLink.faultLog", null);
+        final String replayName =
+                Config.getString("NetworkLink.faultReplay", null);
+
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                openFiles(logName, replayName);
+            }
+        });
+    }
+
+    private double getDouble(String key, double defaultValue) {
+        return Config.getDouble("NetworkLink." + key + "." + linkAddress,
+                Config.getDouble("NetworkLink." + key, defaultValue));
+    }
+
+    private int getInteger(String key, int defaultValue) {
+        return Config.getInteger("NetworkLink." + key + "." + linkAddress,
+                Config.getInteger("NetworkLink." + key, defaultValue));
+    }
+
+    private static synchronized void openFiles(String logName,
+                                               String replayName) {
+        try {
+            if (logName != null && log == null)
+                log = new PrintWriter(new FileWriter(logName), true);
+
+            if (replayName != null && replay == null) {
+                replay = new HashMap<Integer, ArrayDeque<String>>();
+
+                BufferedReader reader =
+                        new BufferedReader(new FileReader(replayName));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split("\\s+", 3);
+                    if (fields.length < 3)
+                        continue;
+
+                    int link = Integer.parseInt(fields[0]);
+                    if (!replay.containsKey(link))
+                        replay.put(link, new ArrayDeque<String>());
+                    replay.get(link).add(fields[2]);
+                }
+                reader.close();
+            }
+        } catch (IOException e) {
+            Lib.assertNotReached("cannot open network fault file: " + e);
+        }
+    }
+
+    /**
+     * Decide what happens to the next packet sent by the link. The decision
+     * is left in <tt>drop</tt>, <tt>duplicated</tt>, <tt>reordered</tt> and
+     * <tt>delayTicks</tt>, until the next call.
+     */
+    void decide() {
+        String decision = null;
+        if (replay != null) {
+            ArrayDeque<String> decisions = replay.get(linkAddress);
+            decision = (decisions == null) ? null : decisions.poll();
+            if (decision == null && !replayExhausted) {
+                replayExhausted = true;
+                System.out.println("network fault replay: link " + linkAddress
+                        + " ran out of decisions after packet " + numPackets);
+            }
+        }
+
+        if (decision != null) {
+            parse(decision);
+        } else {
+            // the generator is always advanced the same amount per packet
+            double dropDraw = random.nextDouble();
+            double duplicateDraw = random.nextDouble();
+            double reorderDraw = random.nextDouble();
+            double delayDraw = random.nextDouble();
+            int delayAmount = 1 + random.nextInt(maxDelay);
+
+            drop = dropDraw > reliability;
+            duplicated = !drop && duplicateDraw < duplicate;
+            reordered = !drop && reorderDraw < reorder;
+            delayTicks = (!drop && delayDraw < delay) ? delayAmount : 0;
+        }
+
+        if (log != null)
+            log.println(linkAddress + " " + numPackets + " " + format());
+
+        numPackets++;
+    }
+
+    private void parse(String decision) {
+        drop = false;
+        duplicated = false;
+        reordered = false;
+        delayTicks = 0;
+
+        for (String token : decision.split("\\s+")) {
+            if (token.equals("drop"))
+                drop = true;
+            else if (token.equals("dup"))
+                duplicated = true;
+            else if (token.equals("reorder"))
+                reordered = true;
+            else if (token.startsWith("delay="))
+                delayTicks = Integer.parseInt(token.substring(6));
+        }
+    }
+
+    private String format() {
+        if (drop)
+            return "drop";
+
+        return "send" + (duplicated ? " dup" : "")
+                + (reordered ? " reorder" : "")
+                + (delayTicks > 0 ? " delay=" + delayTicks : "");
+    }
+
+    /**
+     * <tt>true</tt> if the last packet decided on is dropped.
+     */
+    boolean drop;
+    /**
+     * <tt>true</tt> if the last packet decided on is sent twice.
+     */
+    boolean duplicated;
+    /**
+     * <tt>true</tt> if the last packet decided on goes out after the packets
+     * sent with it.
+     */
+    boolean reordered;
+    /**
+     * The number of ticks the last packet decided on is held back, or 0.
+     */
+    int delayTicks;
+
+    private int linkAddress;
+    private double reliability, duplicate, reorder, delay;
+    private int maxDelay;
+    private Random random;
+    private int numPackets = 0;
+    private boolean replayExhausted = false;
+
+    private static PrintWriter log = null;
+    private static HashMap<Integer, ArrayDeque<String>> replay = null;
+}
@@ -0,0 +1,113 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A histogram of non-negative values, such as delays in ticks or queue
+ * depths, with a bucket for each power of two: 0, 1, 2-3, 4-7, and so on.
+ * Recording a value is constant time and allocates nothing, so histograms
+ * can be kept in interrupt handlers.
+ */
+public final class Histogram {
+    /**
+     * Allocate a new, empty histogram.
+     *
+     * @param    name    the name to print the histogram under.
+     */
+    public Histogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     *
+     * @param    value    the value to record.
+     */
+    public void add(long value) {
+        value = Math.max(0, value);
+
+        int bucket = 64 - Long.numberOfLeadingZeros(value);
+        buckets[bucket]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Return the number of values recorded.
+     *
+     * @return the number of values recorded.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Return the mean of the values recorded, or 0 if there are none.
+     *
+     * @return the mean value.
+     */
+    public double getMean() {
+        return (count == 0) ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Return the largest value recorded, or 0 if there are none.
+     *
+     * @return the largest value.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Return an upper bound on the specified fraction of the values recorded:
+     * the top of the first bucket at which that fraction has been reached.
+     *
+     * @param    fraction    the fraction, between 0 and 1.
+     * @return the upper bound.
+     */
+    public long getPercentile(double fraction) {
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (count > 0 && seen >= fraction * count)
+                return Math.min(max, bucketTop(i));
+        }
+
+        return max;
+    }
+
+    private static long bucketTop(int bucket) {
+        return (bucket == 0) ? 0 : (1L << bucket) - 1;
+    }
+
+    /**
+     * Return the histogram as one line: the count, mean, 90th percentile and
+     * maximum, followed by every bucket that holds a value.
+     */
+    public String toString() {
+        StringBuilder line = new StringBuilder(name + ": count " + count);
+        if (count == 0)
+            return line.toString();
+
+        line.append(", mean " + String.format("%.1f", getMean())
+                + ", p90 " + getPercentile(0.9) + ", max " + max + ";");
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] == 0)
+                continue;
+
+            long bottom = (i == 0) ? 0 : (1L << (i - 1));
+            line.append(" [" + bottom);
+            if (bucketTop(i) != bottom)
+                line.append("-" + bucketTop(i));
+            line.append("]:" + buckets[i]);
+        }
+
+        return line.toString();
+    }
+
+    private String name;
+    private long[] buckets = new long[65];
+    private long count = 0, sum = 0, max = 0;
+}
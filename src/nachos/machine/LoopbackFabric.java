@@ -0,0 +1,44 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A network fabric that connects only the network links in this JVM. Sending
+ * a packet appends it straight to the destination link's queue of arriving
+ * packets, with no host system calls and no locks, so many simulated machines
+ * can exchange packets at the speed of the simulation. Packets sent to an
+ * address with no link attached are lost. Since nothing outside this JVM sees
+ * its packets, the fabric carries packets as long as the header allows, for
+ * links configured with a larger MTU.
+ */
+public class LoopbackFabric implements NetworkFabric {
+    /**
+     * Allocate a new loopback fabric with no links attached.
+     */
+    public LoopbackFabric() {
+    }
+
+    public int attach(NetworkLink link) {
+        for (int address = 0; address < Packet.linkAddressLimit; address++) {
+            if (links.compareAndSet(address, null, link))
+                return address;
+        }
+
+        return -1;
+    }
+
+    public void send(int srcLink, int dstLink, byte[] packetBytes) {
+        NetworkLink link = links.get(dstLink);
+        if (link != null)
+            link.deliver(packetBytes);
+    }
+
+    public int getMaxPacketLength() {
+        return Packet.maxJumboPacketLength;
+    }
+
+    private AtomicReferenceArray<NetworkLink> links =
+            new AtomicReferenceArray<NetworkLink>(Packet.linkAddressLimit);
+}
@@ -351,6 +351,23 @@ public final class Machine {
         return networkLink;
     }
 
+    /**
+     * Attach another network link to the network fabric, as if another
+     * machine had joined the network. A kernel can use these links to run
+     * protocols among many simulated machines in one instance of Nachos; with
+     * <tt>NetworkLink.fabric = loopback</tt> they exchange packets without
+     * touching the host network.
+     *
+     * @return the new network link, or <tt>null</tt> if the network link is
+     * not present.
+     */
+    public static NetworkLink createNetworkLink() {
+        if (networkLink == null)
+            return null;
+
+        return new NetworkLink(privilege, false);
+    }
+
     /**
      * Return the autograder.
      *
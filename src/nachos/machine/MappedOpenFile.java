@@ -0,0 +1,210 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * An <tt>OpenFile</tt> backed by a memory-mapped host file. Reads and writes
+ * are copies to and from the mapping, so they make no host system calls. A
+ * write past the end of the mapping remaps the file at twice the size (or
+ * more, if needed). Every open file with the same host file shares one
+ * mapping; when the last of them is closed, or when <tt>syncAll()</tt> is
+ * called before the machine halts, the mapping is forced to disk and the host
+ * file is trimmed back to the file's length.
+ *
+ * <p>
+ * Like a buffer cache hit, an access costs no simulated disk latency, only
+ * the kernel tick spent with interrupts disabled.
+ */
+public class MappedOpenFile extends OpenFileWithPosition {
+    /**
+     * Open and map a host file. Must be called with enough privilege to open
+     * <i>f</i>.
+     *
+     * @param    fileSystem    the file system to which the file belongs.
+     * @param    name        the name of the file, on that file system.
+     * @param    f        the host file to map.
+     * @param    truncate    if <tt>true</tt>, create the file if it does not
+     * exist, and empty it if it does.
+     * @throws IOException if the file does not exist and <i>truncate</i> is
+     * <tt>false</tt>, or if it cannot be opened or mapped.
+     */
+    public MappedOpenFile(FileSystem fileSystem, String name, File f,
+                          boolean truncate) throws IOException {
+        super(fileSystem, name);
+
+        key = f.getAbsolutePath();
+        mapping = mappings.get(key);
+
+        // a mapping of a file that has since been removed is not shared
+        if (mapping == null || !f.exists()) {
+            if (!truncate && !f.exists())
+                throw new IOException();
+
+            mapping = new Mapping(new RandomAccessFile(f, "rw"));
+            mapping.modified = f.lastModified();
+            mappings.put(key, mapping);
+            openMappings.add(mapping);
+        }
+
+        // the host file keeps its size until the last close, so that other
+        // open files never touch a page past its end
+        if (truncate) {
+            mapping.length = 0;
+            mapping.touch();
+        }
+
+        mapping.references++;
+        open = true;
+    }
+
+    private static class Mapping {
+        Mapping(RandomAccessFile file) throws IOException {
+            this.file = file;
+            channel = file.getChannel();
+            length = (int) channel.size();
+            map(length);
+        }
+
+        private void map(int size) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        private void touch() {
+            // unique even if the clock has not moved since the last change
+            modified = Math.max(modified + 1, System.currentTimeMillis());
+        }
+
+        private void sync() {
+            buffer.force();
+
+            try {
+                if (channel.size() > length) {
+                    file.setLength(length);
+                    // the old mapping now runs past the end of the file
+                    map(length);
+                }
+            } catch (IOException e) {
+            }
+        }
+
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int length;
+        private long modified;
+        private int references = 0;
+    }
+
+    public int read(int pos, byte[] buf, int offset, int length) {
+        if (!open || pos < 0 || length < 0)
+            return -1;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        int amount = Math.max(0, Math.min(length, mapping.length - pos));
+        if (amount > 0) {
+            ByteBuffer view = mapping.buffer.duplicate();
+            view.position(pos);
+            view.get(buf, offset, amount);
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return amount;
+    }
+
+    public int write(int pos, byte[] buf, int offset, int length) {
+        if (!open || pos < 0 || length < 0)
+            return -1;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        try {
+            int capacity = mapping.buffer.capacity();
+            if (pos + length > capacity)
+                mapping.map(Math.max(pos + length, capacity * 2));
+        } catch (IOException e) {
+            Machine.interrupt().restore(intStatus);
+            return -1;
+        }
+
+        ByteBuffer view = mapping.buffer.duplicate();
+        // a hole left by this write reads back as zeros
+        for (view.position(mapping.length); view.position() < pos; )
+            view.put((byte) 0);
+        view.position(pos);
+        view.put(buf, offset, length);
+        mapping.length = Math.max(mapping.length, pos + length);
+        mapping.touch();
+
+        Machine.interrupt().restore(intStatus);
+        return length;
+    }
+
+    public int length() {
+        if (!open)
+            return -1;
+
+        return mapping.length;
+    }
+
+    public long lastModified() {
+        if (!open)
+            return -1;
+
+        return mapping.modified;
+    }
+
+    public void close() {
+        if (!open)
+            return;
+
+        open = false;
+        if (--mapping.references > 0)
+            return;
+
+        if (mappings.get(key) == mapping)
+            mappings.remove(key);
+        openMappings.remove(mapping);
+
+        mapping.sync();
+
+        try {
+            mapping.file.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Force every open mapping to disk and trim each host file back to its
+     * file's length, as the last <tt>close()</tt> would. The files stay
+     * open and usable.
+     */
+    public static void syncAll() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        for (Mapping mapping : openMappings)
+            mapping.sync();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    private String key;
+    private Mapping mapping;
+    private boolean open = false;
+
+    private static HashMap<String, Mapping> mappings =
+            new HashMap<String, Mapping>();
+    /**
+     * Every mapping with an open file, including those of removed files.
+     */
+    private static HashSet<Mapping> openMappings = new HashSet<Mapping>();
+}
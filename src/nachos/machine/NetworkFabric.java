@@ -0,0 +1,49 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * The medium that carries packets between network links. Every network link
+ * in this JVM is attached to the same fabric, chosen by
+ * <tt>NetworkLink.fabric</tt> in <tt>nachos.conf</tt>: <tt>udp</tt> (the
+ * default) connects to other Nachos instances through UDP sockets on this
+ * host, and <tt>loopback</tt> connects only the links in this JVM, without
+ * using the host network at all.
+ *
+ * <p>
+ * A fabric provides the same service as the physical network: unreliable
+ * delivery of uncorrupted packets, in order between any two links. Dropping,
+ * duplicating, reordering and delaying packets is left to the links, so
+ * packets can still arrive out of order when <tt>NetworkLink.reorder</tt> or
+ * <tt>NetworkLink.delay</tt> is above 0.
+ *
+ * @see    nachos.machine.NetworkLink
+ */
+public interface NetworkFabric {
+    /**
+     * Attach a network link to this fabric and give it an address. From then
+     * on, packets sent to that address are handed to the link's
+     * <tt>deliver()</tt> method. Must be called with privilege.
+     *
+     * @param    link    the link to attach.
+     * @return the link's address, or -1 if no address is available.
+     */
+    public int attach(NetworkLink link);
+
+    /**
+     * Send a packet from one attached link to another address. Must be called
+     * with privilege, and must not block.
+     *
+     * @param    srcLink    the address of the sending link.
+     * @param    dstLink    the address to send the packet to.
+     * @param    packetBytes    the contents of the packet.
+     */
+    public void send(int srcLink, int dstLink, byte[] packetBytes);
+
+    /**
+     * Return the length of the longest packet this fabric can carry.
+     *
+     * @return the largest MTU a link on this fabric can have.
+     */
+    public int getMaxPacketLength();
+}
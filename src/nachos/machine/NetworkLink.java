@@ -4,17 +4,15 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A full-duplex network link. Provides ordered, unreliable delivery of
- * limited-size packets to other machines on the network. Packets are
- * guaranteed to be uncorrupted as well.
+ * A full-duplex network link. Provides unreliable delivery of limited-size
+ * packets to other machines on the network. Packets are guaranteed to be
+ * uncorrupted, and arrive in the order they were sent unless the link's
+ * <tt>FaultModel</tt> is set to reorder or delay them.
  *
  * <p>
  * Recall the general layering of network protocols:
@@ -32,9 +30,9 @@ import java.net.SocketException;
  * <p>
  * The link layer uses the physical layer to provide a packet interface to the
  * network layer. The link layer generally provides unreliable delivery of
- * limited-size packets, but guarantees that packets will not arrive out of
- * order. Some links protect against packet corruption as well. The ethernet
- * protocol is an example of a link layer.
+ * limited-size packets, and usually delivers them in order, though that is
+ * not guaranteed. Some links protect against packet corruption as well. The
+ * ethernet protocol is an example of a link layer.
  *
  * <p>
  * The network layer exists to connect multiple networks together into an
@@ -54,9 +52,17 @@ import java.net.SocketException;
  * <p>
  * This class provides a link layer abstraction. Since we do not allow
  * different Nachos networks to communicate with one another, there is no need
- * for a network layer in Nachos. This should simplify your design for the
- * session/transport layer, since you can assume packets never arrive out of
- * order.
+ * for a network layer in Nachos. By default packets arrive in the order they
+ * were sent, but when <tt>NetworkLink.reorder</tt> or
+ * <tt>NetworkLink.delay</tt> is above 0 they can arrive out of order, and
+ * when <tt>NetworkLink.duplicate</tt> is above 0 they can arrive more than
+ * once. A session/transport layer should not assume either cannot happen.
+ *
+ * <p>
+ * The links themselves are connected by a <tt>NetworkFabric</tt>. Besides the
+ * link returned by <tt>Machine.networkLink()</tt>, a kernel can attach more
+ * links to the fabric with <tt>Machine.createNetworkLink()</tt>, each standing
+ * for another machine on the network.
  */
 public class NetworkLink {
     /**
@@ -65,44 +71,66 @@ public class NetworkLink {
      * <p>
      * <tt>nachos.conf</tt> specifies the reliability of the network. The
      * reliability, between 0 and 1, is the probability that any particular
-     * packet will not get dropped by the network.
+     * packet will not get dropped by the network; <tt>FaultModel</tt>
+     * describes this and the other faults that can be injected, which can be
+     * set for each link. <tt>nachos.conf</tt> also sets how many
+     * packets can wait to be sent (<tt>NetworkLink.sendQueueSize</tt>) and
+     * how many received packets can wait for the kernel
+     * (<tt>NetworkLink.receiveQueueSize</tt>), and the longest packet a link
+     * sends (<tt>NetworkLink.mtu</tt>), which can only exceed
+     * <tt>Packet.maxPacketLength</tt> on the <tt>loopback</tt> fabric.
      *
      * @param    privilege encapsulates privileged access to the Nachos
      * machine.
      */
     public NetworkLink(Privilege privilege) {
-        System.out.print(" network");
-
-        this.privilege = privilege;
+        this(privilege, true);
+    }
 
-        try {
-            localHost = InetAddress.getLocalHost();
-        } catch (UnknownHostException e) {
-            localHost = null;
-        }
+    /**
+     * Allocate a new network link, optionally without announcing it.
+     *
+     * @param    privilege encapsulates privileged access to the Nachos
+     * machine.
+     * @param    announce    <tt>true</tt> to print the link's address.
+     */
+    NetworkLink(Privilege privilege, boolean announce) {
+        if (announce)
+            System.out.print(" network");
 
-        Lib.assertTrue(localHost != null);
+        this.privilege = privilege;
 
-        reliability = Config.getDouble("NetworkLink.reliability");
-        Lib.assertTrue(reliability > 0 && reliability <= 1.0);
+        outgoingPackets =
+                new Packet[Config.getInteger("NetworkLink.sendQueueSize", 16)];
+        outgoingTimes = new long[outgoingPackets.length];
+        incomingPackets = new Packet[
+                Config.getInteger("NetworkLink.receiveQueueSize", 16)];
+        Lib.assertTrue(outgoingPackets.length > 0 && incomingPackets.length > 0);
 
-        socket = null;
+        mtu = Config.getInteger("NetworkLink.mtu", Packet.maxPacketLength);
+        Lib.assertTrue(mtu >= Packet.maxPacketLength &&
+                mtu <= getFabric().getMaxPacketLength(),
+                "NetworkLink.mtu is out of range for this fabric");
 
-        for (linkAddress = 0; linkAddress < Packet.linkAddressLimit; linkAddress++) {
-            try {
-                socket = new DatagramSocket(portBase + linkAddress, localHost);
-                break;
-            } catch (SocketException e) {
+        final int[] address = new int[1];
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                address[0] = getFabric().attach(NetworkLink.this);
             }
-        }
+        });
 
-        if (socket == null) {
+        if (address[0] == -1) {
             System.out.println("");
             System.out.println("Unable to acquire a link address!");
             Lib.assertNotReached();
         }
 
-        System.out.print("(" + linkAddress + ")");
+        linkAddress = (byte) address[0];
+
+        faults = new FaultModel(privilege, linkAddress);
+
+        if (announce)
+            System.out.print("(" + linkAddress + ")");
 
         receiveInterrupt = new Runnable() {
             public void run() {
@@ -117,14 +145,21 @@ public class NetworkLink {
         };
 
         scheduleReceiveInterrupt();
+    }
 
-        Thread receiveThread = new Thread(new Runnable() {
-            public void run() {
-                receiveLoop();
-            }
-        });
+    private static synchronized NetworkFabric getFabric() {
+        if (fabric == null) {
+            String name = Config.getString("NetworkLink.fabric", "udp");
 
-        receiveThread.start();
+            if (name.equals("udp"))
+                fabric = new UdpFabric();
+            else if (name.equals("loopback"))
+                fabric = new LoopbackFabric();
+            else
+                Lib.assertNotReached("unknown network fabric: " + name);
+        }
+
+        return fabric;
     }
 
     /**
@@ -136,17 +171,28 @@ public class NetworkLink {
         return linkAddress;
     }
 
+    /**
+     * Return the length of the longest packet this link can send, which is
+     * at least <tt>Packet.maxPacketLength</tt>.
+     *
+     * @return the MTU of this link.
+     */
+    public int getMTU() {
+        return mtu;
+    }
+
     /**
      * Set this link's receive and send interrupt handlers.
      *
      * <p>
-     * The receive interrupt handler is called every time a packet arrives
-     * and can be read using <tt>receive()</tt>.
+     * The receive interrupt handler is called every time one or more packets
+     * arrive and can be read using <tt>receive()</tt>. The handler should
+     * keep calling <tt>receive()</tt> until it returns <tt>null</tt>.
      *
      * <p>
-     * The send interrupt handler is called every time a packet sent with
-     * <tt>send()</tt> is finished being sent. This means that another
-     * packet can be sent.
+     * The send interrupt handler is called every time the packets queued with
+     * <tt>send()</tt> are finished being sent. This means that the send queue
+     * is empty again.
      *
      * @param    receiveInterruptHandler    the callback to call when a packet
      * arrives.
@@ -165,28 +211,40 @@ public class NetworkLink {
     }
 
     private synchronized void receiveInterrupt() {
-        Lib.assertTrue(incomingPacket == null);
+        boolean received = false;
+
+        // deliver everything the fabric has handed us, as room allows
+        while (incomingCount < incomingPackets.length) {
+            Arrival arrival = incomingBytes.poll();
+            if (arrival == null)
+                break;
+            incomingByteCount.decrementAndGet();
 
-        if (incomingBytes != null) {
             if (Machine.autoGrader().canReceivePacket(privilege)) {
                 try {
-                    incomingPacket = new Packet(incomingBytes);
+                    int tail = (incomingHead + incomingCount)
+                            % incomingPackets.length;
+                    incomingPackets[tail] = new Packet(arrival.packetBytes);
+                    incomingCount++;
+                    received = true;
 
                     privilege.stats.numPacketsReceived++;
+                    numReceived++;
+                    wireTime.add(privilege.stats.totalTicks - arrival.time);
                 } catch (MalformedPacketException e) {
+                    numMalformed++;
                 }
             }
+        }
 
-            incomingBytes = null;
-            notify();
+        if (received)
+            receiveQueueDepth.add(incomingCount);
 
-            if (incomingPacket == null)
-                scheduleReceiveInterrupt();
-            else if (receiveInterruptHandler != null)
-                receiveInterruptHandler.run();
-        } else {
-            scheduleReceiveInterrupt();
-        }
+        notify();
+        scheduleReceiveInterrupt();
+
+        if (received && receiveInterruptHandler != null)
+            receiveInterruptHandler.run();
     }
 
     /**
@@ -196,45 +254,41 @@ public class NetworkLink {
      * available.
      */
     public Packet receive() {
-        Packet p = incomingPacket;
+        if (incomingCount == 0)
+            return null;
 
-        if (incomingPacket != null) {
-            incomingPacket = null;
-            scheduleReceiveInterrupt();
-        }
+        Packet p = incomingPackets[incomingHead];
+        incomingPackets[incomingHead] = null;
+        incomingHead = (incomingHead + 1) % incomingPackets.length;
+        incomingCount--;
 
         return p;
     }
 
-    private void receiveLoop() {
-        while (true) {
-            synchronized (this) {
-                while (incomingBytes != null) {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                    }
-                }
-            }
-
-            byte[] packetBytes;
+    /**
+     * Accept a packet that the fabric has carried to this link. It is
+     * delivered to the kernel by the next receive interrupt. May be called by
+     * any host thread, and never blocks.
+     *
+     * @param    packetBytes    the contents of the packet.
+     */
+    void deliver(byte[] packetBytes) {
+        incomingBytes.offer(new Arrival(packetBytes,
+                privilege.stats.totalTicks));
+        incomingByteCount.incrementAndGet();
+    }
 
+    /**
+     * Block the calling host thread until fewer packets are waiting for the
+     * next receive interrupt than the kernel can accept, so that a fabric
+     * that receives packets on its own thread does not queue them without
+     * bound.
+     */
+    synchronized void waitForRoom() {
+        while (incomingByteCount.get() >= incomingPackets.length) {
             try {
-                byte[] buffer = new byte[Packet.maxPacketLength];
-
-                DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
-
-                socket.receive(dp);
-
-                packetBytes = new byte[dp.getLength()];
-
-                System.arraycopy(buffer, 0, packetBytes, 0, packetBytes.length);
-            } catch (IOException e) {
-                return;
-            }
-
-            synchronized (this) {
-                incomingBytes = packetBytes;
+                wait();
+            } catch (InterruptedException e) {
             }
         }
     }
@@ -245,53 +299,134 @@ public class NetworkLink {
     }
 
     private void sendInterrupt() {
-        Lib.assertTrue(outgoingPacket != null);
+        Lib.assertTrue(outgoingCount > 0);
+
+        // the whole queue goes out together, and the fault model decides
+        // what happens to each packet
+        ArrayList<Runnable> reordered = new ArrayList<Runnable>();
+        while (outgoingCount > 0) {
+            final Packet p = outgoingPackets[outgoingHead];
+            outgoingPackets[outgoingHead] = null;
+            sendQueueDelay.add(privilege.stats.totalTicks
+                    - outgoingTimes[outgoingHead]);
+            outgoingHead = (outgoingHead + 1) % outgoingPackets.length;
+            outgoingCount--;
+
+            if (!Machine.autoGrader().canSendPacket(privilege)) {
+                numDropped++;
+                continue;
+            }
+
+            faults.decide();
+            if (faults.drop) {
+                numDropped++;
+                continue;
+            }
+
+            final int copies = faults.duplicated ? 2 : 1;
+            final int delayTicks = faults.delayTicks;
+            if (faults.duplicated)
+                numDuplicated++;
+            if (delayTicks > 0)
+                numDelayed++;
 
-        // randomly drop packets, according to its reliability
-        if (Machine.autoGrader().canSendPacket(privilege) &&
-                Lib.random() <= reliability) {
-            // ok, no drop
-            privilege.doPrivileged(new Runnable() {
+            Runnable transmit = new Runnable() {
                 public void run() {
-                    sendPacket();
+                    transmit(p, copies, delayTicks);
                 }
-            });
-        } else {
-            outgoingPacket = null;
+            };
+
+            if (faults.reordered) {
+                numReordered++;
+                reordered.add(transmit);
+            } else {
+                transmit.run();
+            }
         }
 
+        // reordered packets go out behind the rest of the queue
+        for (Runnable transmit : reordered)
+            transmit.run();
+
         if (sendInterruptHandler != null)
             sendInterruptHandler.run();
     }
 
-    private void sendPacket() {
-        Packet p = outgoingPacket;
-        outgoingPacket = null;
+    private void transmit(final Packet p, final int copies, int delayTicks) {
+        Runnable send = new Runnable() {
+            public void run() {
+                privilege.doPrivileged(new Runnable() {
+                    public void run() {
+                        for (int i = 0; i < copies; i++)
+                            sendPacket(p);
+                    }
+                });
+            }
+        };
 
-        try {
-            socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
-                    localHost, portBase + p.dstLink));
+        if (delayTicks == 0)
+            send.run();
+        else
+            privilege.interrupt.schedule(delayTicks, "network delay", send);
+    }
 
-            privilege.stats.numPacketsSent++;
-        } catch (IOException e) {
-        }
+    private void sendPacket(Packet p) {
+        getFabric().send(linkAddress, p.dstLink, p.packetBytes);
+
+        privilege.stats.numPacketsSent++;
+        numSent++;
     }
 
     /**
-     * Send another packet. If a packet is already being sent, the result is
-     * not defined.
+     * Test whether another packet can be queued with <tt>send()</tt>.
      *
-     * @param    pkt    the packet to send.
+     * @return <tt>true</tt> if the send queue is not full.
+     */
+    public boolean canSend() {
+        return outgoingCount < outgoingPackets.length;
+    }
+
+    /**
+     * Queue another packet to be sent. All the packets queued by the time the
+     * link next transmits are sent together, after which the send interrupt
+     * handler is called. Callers must check <tt>canSend()</tt> first: queueing
+     * a packet when the send queue is full fails an assertion, which halts
+     * the machine.
+     *
+     * @param    pkt    the packet to send, no longer than <tt>getMTU()</tt>.
      */
     public void send(Packet pkt) {
-        if (outgoingPacket == null)
+        Lib.assertTrue(canSend());
+        Lib.assertTrue(pkt.packetBytes.length <= mtu, "packet exceeds link MTU");
+
+        if (outgoingCount == 0)
             scheduleSendInterrupt();
 
-        outgoingPacket = pkt;
+        int tail = (outgoingHead + outgoingCount) % outgoingPackets.length;
+        outgoingPackets[tail] = pkt;
+        outgoingTimes[tail] = privilege.stats.totalTicks;
+        outgoingCount++;
     }
 
-    private static final int hash;
-    private static final int portBase;
+    /**
+     * Print what this link has seen: how many packets it sent, dropped,
+     * duplicated, reordered, delayed, received and rejected as malformed,
+     * and histograms of the ticks a
+     * packet waited in the send queue, of the ticks between a packet
+     * reaching this link and its receive interrupt (the simulated wire time),
+     * and of the receive queue depth after each receive interrupt. May be
+     * called at any time.
+     */
+    public void printStats() {
+        System.out.println("Network link " + linkAddress + ": sent " + numSent
+                + ", dropped " + numDropped + ", duplicated " + numDuplicated
+                + ", reordered " + numReordered + ", delayed " + numDelayed
+                + ", received " + numReceived + ", malformed "
+                + numMalformed);
+        System.out.println("  " + sendQueueDelay);
+        System.out.println("  " + wireTime);
+        System.out.println("  " + receiveQueueDepth);
+    }
 
     /**
      * The address of the network to which are attached all network links in
@@ -302,9 +437,7 @@ public class NetworkLink {
     public static final byte networkID;
 
     static {
-        hash = System.getProperty("user.name").hashCode();
-        portBase = 0x4E41 + Math.abs(hash % 0x4E41);
-        networkID = (byte) (hash / 0x4E41);
+        networkID = (byte) (System.getProperty("user.name").hashCode() / 0x4E41);
     }
 
     private Privilege privilege;
@@ -315,15 +448,51 @@ public class NetworkLink {
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
 
-    private InetAddress localHost;
-    private DatagramSocket socket;
+    private static NetworkFabric fabric = null;
 
     private byte linkAddress;
-    private double reliability;
+    private int mtu;
+
+    /**
+     * Packets carried here by the fabric, waiting for the next receive
+     * interrupt.
+     */
+    private ConcurrentLinkedQueue<Arrival> incomingBytes =
+            new ConcurrentLinkedQueue<Arrival>();
+    private AtomicInteger incomingByteCount = new AtomicInteger();
+    /**
+     * Packets waiting for the kernel to call <tt>receive()</tt>.
+     */
+    private Packet[] incomingPackets;
+    private int incomingHead = 0, incomingCount = 0;
+    private Packet[] outgoingPackets;
+    private int outgoingHead = 0, outgoingCount = 0;
+
+    /**
+     * A packet carried here by the fabric, and the time it arrived.
+     */
+    private static class Arrival {
+        Arrival(byte[] packetBytes, long time) {
+            this.packetBytes = packetBytes;
+            this.time = time;
+        }
+
+        byte[] packetBytes;
+        long time;
+    }
+
+    /**
+     * The time each packet in the send queue was queued.
+     */
+    private long[] outgoingTimes;
 
-    private byte[] incomingBytes = null;
-    private Packet incomingPacket = null;
-    private Packet outgoingPacket = null;
+    private FaultModel faults;
 
-    private boolean sendBusy = false;
+    private int numSent = 0, numDropped = 0;
+    private int numDuplicated = 0, numReordered = 0, numDelayed = 0;
+    private int numReceived = 0, numMalformed = 0;
+    private Histogram sendQueueDelay = new Histogram("send queue ticks");
+    private Histogram wireTime = new Histogram("wire ticks");
+    private Histogram receiveQueueDepth =
+            new Histogram("receive queue depth");
 }
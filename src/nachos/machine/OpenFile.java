@@ -86,6 +86,18 @@ public class OpenFile {
         return -1;
     }
 
+    /**
+     * Get a stamp that changes whenever this file's contents change, such as
+     * the time at which it was last modified. Two equal stamps from the same
+     * file mean the contents did not change in between.
+     *
+     * @return the modification stamp of this file, or -1 if this file has
+     * none.
+     */
+    public long lastModified() {
+        return -1;
+    }
+
     /**
      * Close this file and release any associated system resources.
      */
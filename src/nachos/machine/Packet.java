@@ -3,13 +3,18 @@
 package nachos.machine;
 
 /**
- * A link-layer packet.
+ * A link-layer packet. A packet is a view of a single array of bytes,
+ * <tt>packetBytes</tt>, that holds the link-layer header followed by the
+ * contents; the contents are never copied into an array of their own. A
+ * layer above can build its own header and payload straight into that array
+ * by allocating it with <tt>allocate()</tt>.
  *
  * @see    nachos.machine.NetworkLink
  */
 public class Packet {
     /**
-     * Allocate a new packet to be sent, using the specified parameters.
+     * Allocate a new packet to be sent, using the specified parameters. The
+     * contents are copied into the packet once.
      *
      * @param    dstLink        the destination link address.
      * @param    srcLink        the source link address.
@@ -17,31 +22,60 @@ public class Packet {
      */
     public Packet(int dstLink, int srcLink, byte[] contents)
             throws MalformedPacketException {
+        this(dstLink, srcLink, contents, 0, contents.length);
+    }
+
+    /**
+     * Allocate a new packet to be sent, with the contents copied once from
+     * part of an array.
+     *
+     * @param    dstLink        the destination link address.
+     * @param    srcLink        the source link address.
+     * @param    buf        the array holding the contents.
+     * @param    offset        the offset of the contents in <i>buf</i>.
+     * @param    length        the number of bytes of contents.
+     */
+    public Packet(int dstLink, int srcLink, byte[] buf, int offset, int length)
+            throws MalformedPacketException {
+        this(dstLink, srcLink, allocate(length), length);
+
+        System.arraycopy(buf, offset, packetBytes, headerLength, length);
+    }
+
+    /**
+     * Allocate a new packet to be sent around an array from
+     * <tt>allocate()</tt> whose contents the caller has already filled in,
+     * starting at <tt>headerLength</tt>. Only the header is written; nothing
+     * is copied.
+     *
+     * @param    dstLink        the destination link address.
+     * @param    srcLink        the source link address.
+     * @param    packetBytes    the array holding the packet.
+     * @param    contentsLength    the number of bytes of contents.
+     */
+    public Packet(int dstLink, int srcLink, byte[] packetBytes,
+                  int contentsLength) throws MalformedPacketException {
         // make sure the paramters are valid
         if (dstLink < 0 || dstLink >= linkAddressLimit ||
                 srcLink < 0 || srcLink >= linkAddressLimit ||
-                contents.length > maxContentsLength)
+                contentsLength < 0 || contentsLength > maxJumboContentsLength ||
+                packetBytes.length != headerLength + contentsLength)
             throw new MalformedPacketException();
 
         this.dstLink = dstLink;
         this.srcLink = srcLink;
-        this.contents = contents;
-
-        packetBytes = new byte[headerLength + contents.length];
+        this.contentsLength = contentsLength;
+        this.packetBytes = packetBytes;
 
         packetBytes[0] = NetworkLink.networkID;
         packetBytes[1] = (byte) dstLink;
         packetBytes[2] = (byte) srcLink;
-        packetBytes[3] = (byte) contents.length;
-
-        // if java had subarrays, i'd use them. but System.arraycopy is ok...
-        System.arraycopy(contents, 0, packetBytes, headerLength,
-                contents.length);
+        packetBytes[3] = (byte) contentsLength;
     }
 
     /**
      * Allocate a new packet using the specified array of bytes received from
-     * the network.
+     * the network. The packet keeps the array as its own.
      *
      * @param    packetBytes    the bytes making up this packet.
      */
@@ -53,19 +87,42 @@ public class Packet {
                 packetBytes[0] != NetworkLink.networkID ||
                 packetBytes[1] < 0 || packetBytes[1] >= linkAddressLimit ||
                 packetBytes[2] < 0 || packetBytes[2] >= linkAddressLimit ||
-                packetBytes[3] < 0 || packetBytes[3] > packetBytes.length - 4)
+                (packetBytes[3] & 0xFF) > packetBytes.length - 4)
             throw new MalformedPacketException();
 
         dstLink = packetBytes[1];
         srcLink = packetBytes[2];
+        contentsLength = packetBytes[3] & 0xFF;
+    }
+
+    /**
+     * Allocate an array big enough for a packet with the specified number of
+     * bytes of contents, to be filled in and passed to
+     * <tt>Packet(int, int, byte[], int)</tt>.
+     *
+     * @param    contentsLength    the number of bytes of contents.
+     * @return the new array.
+     */
+    public static byte[] allocate(int contentsLength) {
+        return new byte[headerLength + Math.max(0, contentsLength)];
+    }
 
-        contents = new byte[packetBytes[3]];
+    /**
+     * Return a copy of the contents of this packet, excluding the link-layer
+     * header.
+     *
+     * @return the contents of this packet.
+     */
+    public byte[] getContents() {
+        byte[] contents = new byte[contentsLength];
         System.arraycopy(packetBytes, headerLength, contents, 0,
-                contents.length);
+                contentsLength);
+        return contents;
     }
 
     /**
-     * This packet, as an array of bytes that can be sent on a network.
+     * This packet, as an array of bytes that can be sent on a network. The
+     * contents follow the header, starting at <tt>headerLength</tt>.
      */
     public byte[] packetBytes;
     /**
@@ -77,9 +134,10 @@ public class Packet {
      */
     public int srcLink;
     /**
-     * The contents of this packet, excluding the link-layer header.
+     * The number of bytes of contents in this packet, excluding the
+     * link-layer header.
      */
-    public byte[] contents;
+    public int contentsLength;
 
     /**
      * The number of bytes in a link-layer packet header. The header is
@@ -104,6 +162,17 @@ public class Packet {
      * that this is just <tt>maxPacketLength - headerLength</tt>.
      */
     public static final int maxContentsLength = maxPacketLength - headerLength;
+    /**
+     * The most content bytes the header can describe. Packets longer than
+     * <tt>maxPacketLength</tt> can only be sent on a link whose MTU allows
+     * them (see <tt>NetworkLink.getMTU()</tt>).
+     */
+    public static final int maxJumboContentsLength = 255;
+    /**
+     * The length of the longest packet the header can describe.
+     */
+    public static final int maxJumboPacketLength =
+            headerLength + maxJumboContentsLength;
 
     /**
      * The upper limit on Nachos link addresses. All link addresses fall
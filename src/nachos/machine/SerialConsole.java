@@ -15,8 +15,9 @@ public interface SerialConsole {
      * Set this console's receive and send interrupt handlers.
      *
      * <p>
-     * The receive interrupt handler is called every time another byte arrives
-     * and can be read using <tt>readByte()</tt>.
+     * The receive interrupt handler is called every time more bytes arrive
+     * and can be read using <tt>readByte()</tt> or <tt>readBytes()</tt>, and
+     * once more when the end of input is reached.
      *
      * <p>
      * The send interrupt handler is called every time a byte sent with
@@ -39,6 +40,26 @@ public interface SerialConsole {
      */
     public int readByte();
 
+    /**
+     * Return up to <i>length</i> bytes that have already been received. The
+     * receive interrupt handler is not called again until every received
+     * byte has been read.
+     *
+     * @param    buf    the buffer to store the bytes in.
+     * @param    offset    the offset in the buffer to start storing bytes.
+     * @param    length    the maximum number of bytes to read.
+     * @return the number of bytes read, which is zero if none are available.
+     */
+    public int readBytes(byte[] buf, int offset, int length);
+
+    /**
+     * Tell whether the input has ended: nothing more will ever be received,
+     * and every byte received has been read.
+     *
+     * @return <tt>true</tt> if there is no more input.
+     */
+    public boolean atEndOfInput();
+
     /**
      * Send another byte. If a byte is already being sent, the result is not
      * defined.
@@ -46,4 +67,16 @@ public interface SerialConsole {
      * @param    value    the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value);
+
+    /**
+     * Send several bytes as a single transfer. The bytes are copied before
+     * this method returns, and the send interrupt handler is called once,
+     * after all of them have been sent. If a send is already in progress, the
+     * result is not defined.
+     *
+     * @param    buf    the buffer containing the bytes to send.
+     * @param    offset    the offset of the first byte to send.
+     * @param    length    the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length);
 }
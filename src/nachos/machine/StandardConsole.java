@@ -34,6 +34,15 @@ public class StandardConsole implements SerialConsole {
         };
 
         scheduleReceiveInterrupt();
+
+        Thread readThread = new Thread(new Runnable() {
+            public void run() {
+                readLoop();
+            }
+        });
+
+        readThread.setDaemon(true);
+        readThread.start();
     }
 
     public final void setInterruptHandlers(Runnable receiveInterruptHandler,
@@ -43,7 +52,7 @@ public class StandardConsole implements SerialConsole {
     }
 
     private void scheduleReceiveInterrupt() {
-        privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
+        privilege.interrupt.schedule(receivePollInterval, "console read",
                 receiveInterrupt);
     }
 
@@ -52,14 +61,55 @@ public class StandardConsole implements SerialConsole {
      *
      * @return the byte read, or -1 of no data is available.
      */
-    protected int in() {
-        try {
-            if (System.in.available() <= 0)
-                return -1;
-
-            return System.in.read();
-        } catch (IOException e) {
+    protected synchronized int in() {
+        if (hostCount == 0)
             return -1;
+
+        int value = hostBuffer[hostHead] & 0xFF;
+        hostHead = (hostHead + 1) % hostBuffer.length;
+        if (hostCount-- == hostBuffer.length)
+            notify();
+
+        return value;
+    }
+
+    /**
+     * Copy bytes from System.in into the host buffer, so that the receive
+     * interrupt never has to wait on, or even ask, the host.
+     */
+    private void readLoop() {
+        byte[] buffer = new byte[256];
+
+        while (true) {
+            int amount;
+
+            try {
+                amount = System.in.read(buffer);
+            } catch (IOException e) {
+                amount = -1;
+            }
+
+            if (amount == -1) {
+                synchronized (this) {
+                    hostEnded = true;
+                }
+                return;
+            }
+
+            synchronized (this) {
+                for (int i = 0; i < amount; i++) {
+                    while (hostCount == hostBuffer.length) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                        }
+                    }
+
+                    hostBuffer[(hostHead + hostCount) % hostBuffer.length] =
+                            buffer[i];
+                    hostCount++;
+                }
+            }
         }
     }
 
@@ -90,28 +140,70 @@ public class StandardConsole implements SerialConsole {
 
 
     private void receiveInterrupt() {
-        Lib.assertTrue(incomingKey == -1);
+        Lib.assertTrue(incomingCount == 0);
 
-        incomingKey = translateCharacter(in());
-        if (incomingKey == -1) {
+        while (incomingCount < incomingKeys.length) {
+            int value = in();
+            if (value == -1)
+                break;
+
+            int key = translateCharacter(value);
+            if (key != -1)
+                incomingKeys[incomingCount++] = (byte) key;
+        }
+
+        if (incomingCount == 0) {
+            // tell the kernel, once, that nothing more is coming
+            if (!endOfInput && hostDrained()) {
+                endOfInput = true;
+                if (receiveInterruptHandler != null)
+                    receiveInterruptHandler.run();
+            }
+
+            // nothing typed: back off, up to a limit
+            receivePollInterval = Math.min(receivePollInterval * 2,
+                    maxReceivePollInterval);
             scheduleReceiveInterrupt();
         } else {
-            privilege.stats.numConsoleReads++;
+            receivePollInterval = Stats.ConsoleTime;
+            privilege.stats.numConsoleReads += incomingCount;
 
             if (receiveInterruptHandler != null)
                 receiveInterruptHandler.run();
         }
     }
 
+    private synchronized boolean hostDrained() {
+        return hostEnded && hostCount == 0;
+    }
+
+    public final boolean atEndOfInput() {
+        return endOfInput;
+    }
+
     public final int readByte() {
-        int key = incomingKey;
+        byte[] key = new byte[1];
+
+        if (readBytes(key, 0, 1) == 0)
+            return -1;
+
+        return key[0] & 0xFF;
+    }
+
+    public final int readBytes(byte[] buf, int offset, int length) {
+        int amount = Math.min(length, incomingCount - incomingHead);
+        if (amount <= 0)
+            return 0;
+
+        System.arraycopy(incomingKeys, incomingHead, buf, offset, amount);
+        incomingHead += amount;
 
-        if (incomingKey != -1) {
-            incomingKey = -1;
+        if (incomingHead == incomingCount) {
+            incomingHead = incomingCount = 0;
             scheduleReceiveInterrupt();
         }
 
-        return key;
+        return amount;
     }
 
     private void scheduleSendInterrupt() {
@@ -120,34 +212,65 @@ public class StandardConsole implements SerialConsole {
     }
 
     /**
-     * Write a byte to the object backing this console.
+     * Write a byte to the object backing this console. The byte may be
+     * buffered until the next call to <tt>flush()</tt>.
      *
      * @param    value    the byte to write.
      */
     protected void out(int value) {
         System.out.write(value);
+    }
+
+    /**
+     * Flush any bytes buffered by <tt>out()</tt> to the object backing this
+     * console.
+     */
+    protected void flush() {
         System.out.flush();
     }
 
     private void sendInterrupt() {
-        Lib.assertTrue(outgoingKey != -1);
+        Lib.assertTrue(outgoingKey != -1 || outgoingBytes != null);
+
+        if (outgoingBytes != null) {
+            for (int i = 0; i < outgoingBytes.length; i++)
+                out(outgoingBytes[i] & 0xFF);
+            flush();
 
-        out(outgoingKey);
-        outgoingKey = -1;
+            privilege.stats.numConsoleWrites += outgoingBytes.length;
+            outgoingBytes = null;
+        } else {
+            out(outgoingKey);
+            if (outgoingKey == '\n')
+                flush();
 
-        privilege.stats.numConsoleWrites++;
+            privilege.stats.numConsoleWrites++;
+            outgoingKey = -1;
+        }
 
         if (sendInterruptHandler != null)
             sendInterruptHandler.run();
+
+        // flush at the end of a burst of single-byte sends
+        if (outgoingKey == -1 && outgoingBytes == null)
+            flush();
     }
 
     public final void writeByte(int value) {
-        if (outgoingKey == -1)
+        if (outgoingKey == -1 && outgoingBytes == null)
             scheduleSendInterrupt();
 
         outgoingKey = value & 0xFF;
     }
 
+    public final void writeBytes(byte[] buf, int offset, int length) {
+        if (outgoingKey == -1 && outgoingBytes == null)
+            scheduleSendInterrupt();
+
+        outgoingBytes = new byte[length];
+        System.arraycopy(buf, offset, outgoingBytes, 0, length);
+    }
+
     private Privilege privilege = null;
 
     private Runnable receiveInterrupt;
@@ -156,8 +279,17 @@ public class StandardConsole implements SerialConsole {
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
 
-    private int incomingKey = -1;
+    private byte[] incomingKeys = new byte[256];
+    private int incomingHead = 0, incomingCount = 0;
+
+    private byte[] hostBuffer = new byte[4096];
+    private int hostHead = 0, hostCount = 0;
+    private boolean hostEnded = false, endOfInput = false;
+
+    private long receivePollInterval = Stats.ConsoleTime;
+    private static final long maxReceivePollInterval = Stats.ConsoleTime * 64;
     private int outgoingKey = -1;
+    private byte[] outgoingBytes = null;
 
     private boolean prevCarriageReturn = false;
 }
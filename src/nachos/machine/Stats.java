@@ -23,6 +23,8 @@ public final class Stats {
                 + ", user " + userTicks);
         System.out.println("Disk I/O: reads " + numDiskReads
                 + ", writes " + numDiskWrites);
+        System.out.println("Buffer cache: hits " + numCacheHits
+                + ", misses " + numCacheMisses);
         System.out.println("Console I/O: reads " + numConsoleReads
                 + ", writes " + numConsoleWrites);
         System.out.println("Paging: page faults " + numPageFaults
@@ -53,6 +55,14 @@ public final class Stats {
      * The total number of sectors Nachos has written to the simulated disk.
      */
     public int numDiskWrites = 0;
+    /**
+     * The total number of file blocks found in the buffer cache.
+     */
+    public int numCacheHits = 0;
+    /**
+     * The total number of file blocks not found in the buffer cache.
+     */
+    public int numCacheMisses = 0;
     /**
      * The total number of characters Nachos has read from the console.
      */
@@ -8,10 +8,33 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * The host work is done by <tt>StubFileSystem.ioThreads</tt> host threads,
+ * so KThreads keep running while it is in progress. Operations on different
+ * files may reach the host in any order, but those on one file reach it in
+ * the order they were issued.
+ *
+ * <p>
+ * Unless <tt>StubFileSystem.cacheBlocks</tt> is 0, file data goes through a
+ * buffer cache of fixed-size blocks. The cache is shared by every open file
+ * with the same name, evicts the least recently used block, writes dirty
+ * blocks back lazily (on eviction, periodically, and when the last open file
+ * is closed), and reads ahead when a file is read sequentially. A cache hit
+ * costs no simulated disk time and no host I/O.
+ *
+ * <p>
+ * If <tt>StubFileSystem.mappedFiles</tt> is set, files are instead opened as
+ * <tt>MappedOpenFile</tt>s, which bypass the cache.
  */
 public class StubFileSystem implements FileSystem {
     /**
@@ -24,13 +47,33 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
         this.privilege = privilege;
         this.directory = directory;
+
+        int numIOThreads = Config.getInteger("StubFileSystem.ioThreads", 4);
+        for (int i = 0; i < numIOThreads; i++) {
+            Thread ioThread = new Thread(new Runnable() {
+                public void run() {
+                    ioLoop();
+                }
+            });
+
+            ioThread.setDaemon(true);
+            ioThread.start();
+        }
+
+        numCacheBlocks = Config.getInteger("StubFileSystem.cacheBlocks", 64);
+        Lib.assertTrue(numCacheBlocks == 0 || numCacheBlocks >= 2);
+        readAheadBlocks = Config.getInteger("StubFileSystem.readAhead", 4);
+        flushInterval = Config.getInteger("StubFileSystem.flushInterval",
+                100000);
+        mappedFiles = Config.getBoolean("StubFileSystem.mappedFiles", false);
     }
 
     public OpenFile open(String name, boolean truncate) {
         if (!checkName(name))
             return null;
 
-        delay();
+        if (mappedFiles)
+            return openMapped(name, truncate);
 
         try {
             return new StubOpenFile(name, truncate);
@@ -43,31 +86,365 @@ public class StubFileSystem implements FileSystem {
         if (!checkName(name))
             return false;
 
-        delay();
+        final File f = new File(directory, name);
+
+        getFilesLock().acquire();
+
+        boolean removed = perform(new IORequest() {
+            int run(RandomAccessFile unused) {
+                return f.delete() ? 0 : -1;
+            }
+        }, null) == 0;
+
+        // open files keep using the old state; new opens get a fresh one
+        FileState state = files.get(name);
+        if (removed && state != null) {
+            files.remove(name);
+
+            if (state.references == 0) {
+                boolean intStatus = Machine.interrupt().disable();
+                invalidate(state);
+                Machine.interrupt().restore(intStatus);
+            }
+        }
+
+        filesLock.release();
+        return removed;
+    }
+
+    /**
+     * Write every dirty cached block back to the host, and wait until all of
+     * them, and any write-backs already under way, have reached it. Open
+     * mapped files are forced to disk and trimmed to their length too.
+     * Called before the machine halts, since open files are not closed then.
+     * Must be called from a KThread.
+     */
+    public void sync() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        flush(null);
+        while (!writingStates.isEmpty())
+            waitForWrites(writingStates.iterator().next());
+
+        Machine.interrupt().restore(intStatus);
+
+        MappedOpenFile.syncAll();
+    }
+
+    private OpenFile openMapped(final String name, final boolean truncate) {
+        if (openCount == maxOpenFiles)
+            return null;
+
+        final OpenFile[] file = new OpenFile[1];
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                try {
+                    file[0] = new StubMappedFile(name, truncate);
+                } catch (IOException e) {
+                }
+            }
+        });
+
+        if (file[0] != null)
+            openCount++;
+        return file[0];
+    }
+
+    private class StubMappedFile extends MappedOpenFile {
+        StubMappedFile(String name, boolean truncate) throws IOException {
+            super(StubFileSystem.this, name, new File(directory, name),
+                    truncate);
+        }
+
+        public void close() {
+            if (length() != -1)
+                openCount--;
+
+            super.close();
+        }
+    }
+
+    /**
+     * An operation to be carried out by a host I/O thread.
+     */
+    private abstract class IORequest {
+        /**
+         * Perform the operation. Called on a host I/O thread.
+         *
+         * @param    file    the file the operation is on, or <tt>null</tt>.
+         * @return the result to hand back to the issuing thread.
+         */
+        abstract int run(RandomAccessFile file) throws IOException;
+
+        /**
+         * Called from the completion interrupt once the operation is done.
+         * By default, wakes up the thread blocked in <tt>perform()</tt>.
+         *
+         * @param    result    the value returned by <tt>run()</tt>.
+         */
+        void finish(int result) {
+            finished.V();
+        }
+
+        private void complete() {
+            int value;
+
+            try {
+                value = run(file);
+            } catch (IOException e) {
+                value = -1;
+            }
+
+            synchronized (this) {
+                result = value;
+                done = true;
+            }
+        }
+
+        private void completionInterrupt() {
+            synchronized (this) {
+                if (done) {
+                    finish(result);
+                    return;
+                }
+            }
+
+            // the disk latency has passed, but the host is still busy
+            privilege.interrupt.schedule(diskPollTime, "disk",
+                    completion);
+        }
+
+        private RandomAccessFile file;
+        private int result;
+        private boolean done = false;
+        private Semaphore finished = new Semaphore(0);
+        private Runnable completion = new Runnable() {
+            public void run() {
+                completionInterrupt();
+            }
+        };
+    }
+
+    /**
+     * Hand <i>request</i> to a host I/O thread without waiting for it. Its
+     * <tt>finish()</tt> method is called from an interrupt once the simulated
+     * disk latency has passed and the host has done the work.
+     *
+     * <p>
+     * Requests on different files may run at the same time and in any order,
+     * but the requests on one file run on the host one at a time, in the
+     * order they were submitted.
+     *
+     * @param    request    the operation to perform.
+     * @param    file    the file the operation is on, or <tt>null</tt>.
+     */
+    private void submit(IORequest request, RandomAccessFile file) {
+        request.file = file;
+
+        synchronized (ioQueue) {
+            ioQueue.add(request);
+            ioQueue.notifyAll();
+        }
 
-        FileRemover fr = new FileRemover(new File(directory, name));
-        privilege.doPrivileged(fr);
-        return fr.successful;
+        boolean intStatus = Machine.interrupt().disable();
+        privilege.interrupt.schedule(diskTime, "disk", request.completion);
+        Machine.interrupt().restore(intStatus);
     }
 
-    private class FileRemover implements Runnable {
-        public FileRemover(File f) {
+    /**
+     * Hand <i>request</i> to a host I/O thread and block the current KThread
+     * until it has completed. Completion is delivered by an interrupt no
+     * sooner than the simulated disk latency, so other KThreads keep running
+     * while the host does the work.
+     *
+     * @param    request    the operation to perform.
+     * @param    file    the file the operation is on, or <tt>null</tt>.
+     * @return the result of the operation.
+     */
+    private int perform(IORequest request, RandomAccessFile file) {
+        boolean intStatus = Machine.interrupt().disable();
+        submit(request, file);
+        request.finished.P();
+        Machine.interrupt().restore(intStatus);
+
+        synchronized (request) {
+            return request.result;
+        }
+    }
+
+    private void ioLoop() {
+        while (true) {
+            IORequest request;
+
+            synchronized (ioQueue) {
+                while ((request = nextRequest()) == null) {
+                    try {
+                        ioQueue.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+
+                if (request.file != null)
+                    busyFiles.add(request.file);
+            }
+
+            request.complete();
+
+            if (request.file != null) {
+                synchronized (ioQueue) {
+                    busyFiles.remove(request.file);
+                    ioQueue.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove and return the oldest queued request whose file no other host
+     * I/O thread is working on, or <tt>null</tt> if there is none. Skipping
+     * busy files keeps the requests on each file in order. Must be called
+     * with the queue locked.
+     */
+    private IORequest nextRequest() {
+        Iterator<IORequest> i = ioQueue.iterator();
+        while (i.hasNext()) {
+            IORequest request = i.next();
+            if (request.file == null || !busyFiles.contains(request.file)) {
+                i.remove();
+                return request;
+            }
+        }
+
+        return null;
+    }
+
+    private Lock getFilesLock() {
+        // created on first use, once the scheduler exists
+        if (filesLock == null)
+            filesLock = new Lock();
+
+        return filesLock;
+    }
+
+    /**
+     * The state shared by every open file with the same name.
+     */
+    private class FileState {
+        FileState(File f) {
             this.f = f;
         }
 
-        public void run() {
-            successful = f.delete();
+        private void openHostFile(boolean truncate) throws IOException {
+            if (!truncate && !f.exists())
+                return;
+
+            RandomAccessFile file = new RandomAccessFile(f, "rw");
+
+            if (truncate)
+                file.setLength(0);
+
+            this.file = file;
+            modified = f.lastModified();
+        }
+
+        private void touch() {
+            // unique even if the clock has not moved since the last change
+            modified = Math.max(modified + 1, System.currentTimeMillis());
         }
 
-        public boolean successful = false;
         private File f;
+        private RandomAccessFile file = null;
+        private int references = 0;
+        private int length = 0;
+        private int generation = 0;
+        private long modified = -1;
+        private int pendingWrites = 0, writeWaiters = 0;
+        private Semaphore writesDone = new Semaphore(0);
+        private int numWriteBacks = 0, numReads = 0;
+        /**
+         * The write-back count after the last write-back of each block
+         * written back while a read was outstanding.
+         */
+        private HashMap<Integer, Integer> lastWriteBack =
+                new HashMap<Integer, Integer>();
     }
 
-    private void delay() {
-        long time = Machine.timer().getTime();
-        int amount = 1000;
-        ThreadedKernel.alarm.waitUntil(amount);
-        Lib.assertTrue(Machine.timer().getTime() >= time + amount);
+    private FileState openState(String name, final boolean truncate) {
+        getFilesLock().acquire();
+
+        FileState state = files.get(name);
+        if (state == null)
+            state = new FileState(new File(directory, name));
+
+        final FileState s = state;
+        int hostLength = -1;
+
+        if (state.references == 0) {
+            hostLength = perform(new IORequest() {
+                int run(RandomAccessFile unused) throws IOException {
+                    s.openHostFile(truncate);
+                    return s.file == null ? -1 : (int) s.file.length();
+                }
+            }, null);
+        } else if (truncate) {
+            boolean intStatus = Machine.interrupt().disable();
+            invalidate(state);
+            waitForWrites(state);
+            Machine.interrupt().restore(intStatus);
+
+            hostLength = perform(new IORequest() {
+                int run(RandomAccessFile file) throws IOException {
+                    file.setLength(0);
+                    return 0;
+                }
+            }, state.file);
+            state.touch();
+        } else {
+            hostLength = state.length;
+        }
+
+        if (hostLength < 0) {
+            filesLock.release();
+            return null;
+        }
+
+        boolean intStatus = Machine.interrupt().disable();
+        // cached blocks are only trusted if the host file looks unchanged
+        if (hostLength != state.length)
+            invalidate(state);
+        state.length = hostLength;
+        Machine.interrupt().restore(intStatus);
+
+        state.references++;
+        files.put(name, state);
+
+        filesLock.release();
+        return state;
+    }
+
+    private void closeState(FileState state) {
+        getFilesLock().acquire();
+
+        if (--state.references == 0) {
+            boolean intStatus = Machine.interrupt().disable();
+            flush(state);
+            waitForWrites(state);
+            Machine.interrupt().restore(intStatus);
+
+            try {
+                state.file.close();
+            } catch (IOException e) {
+            }
+            state.file = null;
+
+            if (files.get(state.f.getName()) != state) {
+                intStatus = Machine.interrupt().disable();
+                invalidate(state);
+                Machine.interrupt().restore(intStatus);
+            }
+        }
+
+        filesLock.release();
     }
 
     private class StubOpenFile extends OpenFileWithPosition {
@@ -75,93 +452,468 @@ public class StubFileSystem implements FileSystem {
                 throws IOException {
             super(StubFileSystem.this, name);
 
-            final File f = new File(directory, name);
-
             if (openCount == maxOpenFiles)
                 throw new IOException();
 
-            privilege.doPrivileged(new Runnable() {
-                public void run() {
-                    getRandomAccessFile(f, truncate);
-                }
-            });
+            state = openState(name, truncate);
 
-            if (file == null)
+            if (state == null)
                 throw new IOException();
 
             open = true;
             openCount++;
         }
 
-        private void getRandomAccessFile(File f, boolean truncate) {
-            try {
-                if (!truncate && !f.exists())
-                    return;
-
-                file = new RandomAccessFile(f, "rw");
-
-                if (truncate)
-                    file.setLength(0);
-            } catch (IOException e) {
-            }
-        }
-
-        public int read(int pos, byte[] buf, int offset, int length) {
+        public int read(final int pos, final byte[] buf, final int offset,
+                        final int length) {
             if (!open)
                 return -1;
 
-            try {
-                delay();
+            if (numCacheBlocks > 0) {
+                int amount = readCached(state, pos, buf, offset, length);
 
-                file.seek(pos);
-                return Math.max(0, file.read(buf, offset, length));
-            } catch (IOException e) {
-                return -1;
+                // read ahead if this read carried on where the last one ended
+                if (amount > 0 && pos == nextPosition)
+                    readAhead(state, (pos + amount - 1) / blockSize + 1);
+                nextPosition = pos + Math.max(amount, 0);
+
+                return amount;
             }
+
+            return perform(new IORequest() {
+                int run(RandomAccessFile file) throws IOException {
+                    file.seek(pos);
+                    return Math.max(0, file.read(buf, offset, length));
+                }
+            }, state.file);
         }
 
-        public int write(int pos, byte[] buf, int offset, int length) {
+        public int write(final int pos, final byte[] buf, final int offset,
+                         final int length) {
             if (!open)
                 return -1;
 
-            try {
-                delay();
+            state.touch();
 
-                file.seek(pos);
-                file.write(buf, offset, length);
-                return length;
-            } catch (IOException e) {
-                return -1;
-            }
+            if (numCacheBlocks > 0)
+                return writeCached(state, pos, buf, offset, length);
+
+            return perform(new IORequest() {
+                int run(RandomAccessFile file) throws IOException {
+                    file.seek(pos);
+                    file.write(buf, offset, length);
+                    return length;
+                }
+            }, state.file);
         }
 
         public int length() {
+            if (numCacheBlocks > 0)
+                return open ? state.length : -1;
+
             try {
-                return (int) file.length();
+                return (int) state.file.length();
             } catch (IOException e) {
                 return -1;
+            } catch (NullPointerException e) {
+                return -1;
             }
         }
 
+        public long lastModified() {
+            return open ? state.modified : -1;
+        }
+
         public void close() {
             if (open) {
                 open = false;
                 openCount--;
-            }
 
-            try {
-                file.close();
-            } catch (IOException e) {
+                closeState(state);
             }
         }
 
-        private RandomAccessFile file = null;
+        private FileState state;
         private boolean open = false;
+        private int nextPosition = 0;
+    }
+
+    /**
+     * Identifies one block of one file in the buffer cache.
+     */
+    private static class BlockKey {
+        BlockKey(FileState state, int blockNumber) {
+            this.state = state;
+            this.blockNumber = blockNumber;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof BlockKey))
+                return false;
+
+            BlockKey key = (BlockKey) o;
+            return key.state == state && key.blockNumber == blockNumber;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(state) * 31 + blockNumber;
+        }
+
+        private FileState state;
+        private int blockNumber;
+    }
+
+    private static class CachedBlock {
+        CachedBlock(BlockKey key, byte[] data) {
+            this.key = key;
+            this.data = data;
+        }
+
+        private BlockKey key;
+        private byte[] data;
+        private boolean dirty = false;
+    }
+
+    private int readCached(FileState state, int pos, byte[] buf, int offset,
+                           int length) {
+        if (pos < 0 || length < 0)
+            return -1;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        int amount = Math.max(0, Math.min(length, state.length - pos));
+        int lastBlock = (pos + amount - 1) / blockSize;
+
+        for (int done = 0; done < amount; ) {
+            int blockOffset = (pos + done) % blockSize;
+            int chunk = Math.min(amount - done, blockSize - blockOffset);
+
+            CachedBlock block = getBlock(state, (pos + done) / blockSize,
+                    lastBlock);
+            if (block == null) {
+                amount = (done == 0) ? -1 : done;
+                break;
+            }
+
+            System.arraycopy(block.data, blockOffset, buf, offset + done,
+                    chunk);
+            done += chunk;
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return amount;
+    }
+
+    private int writeCached(FileState state, int pos, byte[] buf, int offset,
+                            int length) {
+        if (pos < 0 || length < 0)
+            return -1;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        for (int done = 0; done < length; ) {
+            int blockNumber = (pos + done) / blockSize;
+            int blockStart = blockNumber * blockSize;
+            int blockOffset = (pos + done) % blockSize;
+            int chunk = Math.min(length - done, blockSize - blockOffset);
+
+            BlockKey key = new BlockKey(state, blockNumber);
+            CachedBlock block = blocks.get(key);
+
+            if (block != null) {
+                privilege.stats.numCacheHits++;
+            } else if (blockStart >= state.length || (blockOffset == 0 &&
+                    blockStart + chunk >= state.length)) {
+                // nothing on disk that this write does not replace
+                privilege.stats.numCacheMisses++;
+                block = insertBlock(key, new byte[blockSize]);
+            } else {
+                block = getBlock(state, blockNumber, blockNumber);
+                if (block == null) {
+                    length = (done == 0) ? -1 : done;
+                    break;
+                }
+            }
+
+            System.arraycopy(buf, offset + done, block.data, blockOffset,
+                    chunk);
+            markDirty(block);
+
+            done += chunk;
+            state.length = Math.max(state.length, pos + done);
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return length;
+    }
+
+    /**
+     * Return the cached copy of a block, reading it from the host if it is
+     * not cached. A miss also brings in the uncached blocks after it, up to
+     * <i>lastBlock</i>, in the same request. Interrupts must be disabled.
+     */
+    private CachedBlock getBlock(FileState state, int blockNumber,
+                                 int lastBlock) {
+        BlockKey key = new BlockKey(state, blockNumber);
+        CachedBlock block = blocks.get(key);
+
+        if (block != null) {
+            privilege.stats.numCacheHits++;
+            return block;
+        }
+
+        privilege.stats.numCacheMisses++;
+
+        int count = 1;
+        while (blockNumber + count <= lastBlock &&
+                count < numCacheBlocks / 2 &&
+                !blocks.containsKey(new BlockKey(state, blockNumber + count)))
+            count++;
+
+        // an older copy may still be on its way to the host
+        waitForWrites(state);
+
+        final byte[] data = new byte[count * blockSize];
+        final int position = blockNumber * blockSize;
+
+        // if the block is written back while we wait, what we read is stale
+        while (true) {
+            int writeBacks = startRead(state);
+            int amount = perform(new IORequest() {
+                int run(RandomAccessFile file) throws IOException {
+                    file.seek(position);
+                    file.read(data, 0, data.length);
+                    return 0;
+                }
+            }, state.file);
+
+            if (amount < 0) {
+                endRead(state);
+                return null;
+            }
+
+            insertBlocks(state, blockNumber, data, count, writeBacks);
+            endRead(state);
+
+            block = blocks.get(key);
+            if (block != null)
+                return block;
+        }
+    }
+
+    /**
+     * Note that a host read of <i>state</i> is starting. Interrupts must be
+     * disabled.
+     *
+     * @return the write-back count to pass to <tt>insertBlocks()</tt>.
+     */
+    private int startRead(FileState state) {
+        state.numReads++;
+        return state.numWriteBacks;
+    }
+
+    private void endRead(FileState state) {
+        if (--state.numReads == 0)
+            state.lastWriteBack.clear();
+    }
+
+    /**
+     * Cache blocks read from the host, except those that have changed since
+     * the read was started: blocks now in the cache, and blocks written back
+     * after the read was submitted, whose new contents reached the host after
+     * the read did.
+     *
+     * @param    writeBacks    the value <tt>startRead()</tt> returned for the
+     * read.
+     */
+    private void insertBlocks(FileState state, int blockNumber, byte[] data,
+                              int count, int writeBacks) {
+        privilege.stats.numDiskReads += count;
+
+        for (int i = 0; i < count; i++) {
+            BlockKey key = new BlockKey(state, blockNumber + i);
+            Integer written = state.lastWriteBack.get(blockNumber + i);
+
+            if (!blocks.containsKey(key) &&
+                    (written == null || written <= writeBacks)) {
+                byte[] blockData = new byte[blockSize];
+                System.arraycopy(data, i * blockSize, blockData, 0, blockSize);
+                insertBlock(key, blockData);
+            }
+        }
+    }
+
+    private CachedBlock insertBlock(BlockKey key, byte[] data) {
+        while (blocks.size() >= numCacheBlocks) {
+            Iterator<CachedBlock> i = blocks.values().iterator();
+            CachedBlock victim = i.next();
+            i.remove();
+
+            if (victim.dirty)
+                writeBack(victim);
+        }
+
+        CachedBlock block = new CachedBlock(key, data);
+        blocks.put(key, block);
+        return block;
+    }
+
+    private void markDirty(CachedBlock block) {
+        block.dirty = true;
+
+        if (!flushScheduled) {
+            flushScheduled = true;
+            privilege.interrupt.schedule(flushInterval, "disk flush",
+                    new Runnable() {
+                        public void run() {
+                            flushScheduled = false;
+                            flush(null);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Start writing a dirty block back to the host. The block is clean as
+     * soon as this returns; the host write completes later.
+     */
+    private void writeBack(CachedBlock block) {
+        final FileState state = block.key.state;
+        final int position = block.key.blockNumber * blockSize;
+        final int length = Math.min(blockSize, state.length - position);
+
+        block.dirty = false;
+        if (length <= 0)
+            return;
+
+        final byte[] data = new byte[length];
+        System.arraycopy(block.data, 0, data, 0, length);
+
+        if (state.pendingWrites++ == 0)
+            writingStates.add(state);
+        privilege.stats.numDiskWrites++;
+
+        state.numWriteBacks++;
+        if (state.numReads > 0)
+            state.lastWriteBack.put(block.key.blockNumber, state.numWriteBacks);
+
+        submit(new IORequest() {
+            int run(RandomAccessFile file) throws IOException {
+                file.seek(position);
+                file.write(data, 0, data.length);
+                return 0;
+            }
+
+            void finish(int result) {
+                if (--state.pendingWrites == 0) {
+                    writingStates.remove(state);
+                    while (state.writeWaiters > 0) {
+                        state.writeWaiters--;
+                        state.writesDone.V();
+                    }
+                }
+            }
+        }, state.file);
+    }
+
+    /**
+     * Write back every dirty block of <i>state</i>, or of every file if it is
+     * <tt>null</tt>. Interrupts must be disabled.
+     */
+    private void flush(FileState state) {
+        for (CachedBlock block : blocks.values()) {
+            if (block.dirty && (state == null || block.key.state == state))
+                writeBack(block);
+        }
+    }
+
+    private void waitForWrites(FileState state) {
+        while (state.pendingWrites > 0) {
+            state.writeWaiters++;
+            state.writesDone.P();
+        }
+    }
+
+    /**
+     * Drop every cached block of <i>state</i>, dirty or not, and cancel its
+     * read-ahead. Interrupts must be disabled.
+     */
+    private void invalidate(FileState state) {
+        Iterator<CachedBlock> i = blocks.values().iterator();
+        while (i.hasNext()) {
+            if (i.next().key.state == state)
+                i.remove();
+        }
+
+        state.generation++;
+    }
+
+    private void readAhead(final FileState state, final int blockNumber) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        int count = 0;
+        while (count < readAheadBlocks &&
+                (blockNumber + count) * blockSize < state.length &&
+                !blocks.containsKey(new BlockKey(state, blockNumber + count)) &&
+                !readingAhead.contains(new BlockKey(state, blockNumber + count)))
+            count++;
+
+        if (count > 0 && state.pendingWrites == 0) {
+            for (int i = 0; i < count; i++)
+                readingAhead.add(new BlockKey(state, blockNumber + i));
+
+            final int generation = state.generation;
+            final int writeBacks = startRead(state);
+            final int numBlocks = count;
+            final byte[] data = new byte[count * blockSize];
+
+            submit(new IORequest() {
+                int run(RandomAccessFile file) throws IOException {
+                    file.seek(blockNumber * blockSize);
+                    file.read(data, 0, data.length);
+                    return 0;
+                }
+
+                void finish(int result) {
+                    for (int i = 0; i < numBlocks; i++)
+                        readingAhead.remove(new BlockKey(state, blockNumber + i));
+
+                    if (result == 0 && state.generation == generation &&
+                            state.file != null)
+                        insertBlocks(state, blockNumber, data, numBlocks,
+                                writeBacks);
+                    endRead(state);
+                }
+            }, state.file);
+        }
+
+        Machine.interrupt().restore(intStatus);
     }
 
     private int openCount = 0;
     private static final int maxOpenFiles = 16;
 
+    private final LinkedList<IORequest> ioQueue = new LinkedList<IORequest>();
+    private HashSet<RandomAccessFile> busyFiles =
+            new HashSet<RandomAccessFile>();
+    private static final int diskTime = 1000;
+    private static final int diskPollTime = 100;
+
+    private Lock filesLock = null;
+    private HashMap<String, FileState> files = new HashMap<String, FileState>();
+
+    private static final int blockSize = Processor.pageSize;
+    private int numCacheBlocks, readAheadBlocks, flushInterval;
+    private boolean mappedFiles;
+    private LinkedHashMap<BlockKey, CachedBlock> blocks =
+            new LinkedHashMap<BlockKey, CachedBlock>(16, 0.75f, true);
+    private HashSet<BlockKey> readingAhead = new HashSet<BlockKey>();
+    /**
+     * The files with write-backs on their way to the host.
+     */
+    private HashSet<FileState> writingStates = new HashSet<FileState>();
+    private boolean flushScheduled = false;
+
     private Privilege privilege;
     private File directory;
 
@@ -0,0 +1,115 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+/**
+ * A network fabric that connects to other Nachos instances on this host. Each
+ * link gets a UDP socket bound to <tt>portBase + address</tt> on the local
+ * host, for the first address whose port is free, and a host thread that
+ * receives packets from it.
+ */
+public class UdpFabric implements NetworkFabric {
+    /**
+     * Allocate a new UDP fabric.
+     */
+    public UdpFabric() {
+        try {
+            localHost = InetAddress.getLocalHost();
+        } catch (UnknownHostException e) {
+            localHost = null;
+        }
+
+        Lib.assertTrue(localHost != null);
+    }
+
+    public int attach(final NetworkLink link) {
+        DatagramSocket socket = null;
+        int address;
+
+        for (address = 0; address < Packet.linkAddressLimit; address++) {
+            try {
+                socket = new DatagramSocket(portBase + address, localHost);
+                break;
+            } catch (SocketException e) {
+            }
+        }
+
+        if (socket == null)
+            return -1;
+
+        sockets[address] = socket;
+
+        final DatagramSocket s = socket;
+        Thread receiveThread = new Thread(new Runnable() {
+            public void run() {
+                receiveLoop(link, s);
+            }
+        });
+
+        receiveThread.setDaemon(true);
+        receiveThread.start();
+
+        return address;
+    }
+
+    private void receiveLoop(NetworkLink link, DatagramSocket socket) {
+        // each datagram lands straight in the array that becomes its packet
+        DatagramPacket dp = new DatagramPacket(new byte[0], 0);
+        byte[] packetBytes = null;
+
+        while (true) {
+            link.waitForRoom();
+
+            if (packetBytes == null)
+                packetBytes = new byte[Packet.maxPacketLength];
+
+            try {
+                dp.setData(packetBytes);
+
+                socket.receive(dp);
+            } catch (IOException e) {
+                return;
+            }
+
+            // a datagram shorter than its header claims is dropped, and its
+            // array reused
+            if (dp.getLength() < Packet.headerLength ||
+                    dp.getLength() < Packet.headerLength + packetBytes[3])
+                continue;
+
+            link.deliver(packetBytes);
+            packetBytes = null;
+        }
+    }
+
+    public void send(int srcLink, int dstLink, byte[] packetBytes) {
+        try {
+            sockets[srcLink].send(new DatagramPacket(packetBytes,
+                    packetBytes.length, localHost, portBase + dstLink));
+        } catch (IOException e) {
+        }
+    }
+
+    public int getMaxPacketLength() {
+        // other Nachos instances expect standard packets
+        return Packet.maxPacketLength;
+    }
+
+    private InetAddress localHost;
+    private DatagramSocket[] sockets =
+            new DatagramSocket[Packet.linkAddressLimit];
+
+    private static final int portBase;
+
+    static {
+        int hash = System.getProperty("user.name").hashCode();
+        portBase = 0x4E41 + Math.abs(hash % 0x4E41);
+    }
+}
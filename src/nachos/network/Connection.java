@@ -0,0 +1,491 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * One end of a reliable, ordered byte stream between two ports, made by
+ * <tt>Transport.connect()</tt> or <tt>Transport.accept()</tt>.
+ *
+ * <p>
+ * Data is carried in numbered segments. The sender keeps up to a window of
+ * segments outstanding, the smaller of its own window and the free space the
+ * receiver last advertised, and retransmits them if they are not
+ * acknowledged in time. The receiver acknowledges cumulatively, holds
+ * segments that arrive early, and hands data to the reader in order.
+ *
+ * <p>
+ * All of a connection's state is guarded by its transport's lock.
+ */
+public class Connection {
+    Connection(Transport transport, int localPort, int remoteLink,
+               int remotePort) {
+        this.transport = transport;
+        this.localPort = localPort;
+        this.remoteLink = remoteLink;
+        this.remotePort = remotePort;
+
+        dataAvailable = new Condition2(transport.lock);
+        spaceAvailable = new Condition2(transport.lock);
+        stateChanged = new Condition2(transport.lock);
+
+        // the first sequence number is random, so that segments left over
+        // from an earlier connection between the same ports are not accepted
+        initialSeq = Lib.random(seqLimit);
+        nextSeq = initialSeq;
+    }
+
+    /**
+     * Return the link address of the other end of this connection.
+     *
+     * @return the remote link address.
+     */
+    public int getRemoteLink() {
+        return remoteLink;
+    }
+
+    /**
+     * Return the port of the other end of this connection.
+     *
+     * @return the remote port.
+     */
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    /**
+     * Return the local port of this connection.
+     *
+     * @return the local port.
+     */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * Queue bytes to be sent on this connection. The bytes are cut into
+     * segments as they are queued, so <i>buf</i> can be reused as soon as
+     * this returns.
+     *
+     * @param    buf    the buffer holding the bytes.
+     * @param    offset    the offset of the first byte in the buffer.
+     * @param    length    the number of bytes to send.
+     * @param    block    <tt>true</tt> to wait while the send buffer is full
+     * until every byte is queued.
+     * @return the number of bytes queued, which may be less than
+     * <i>length</i> if <i>block</i> is <tt>false</tt>, or -1 if the
+     * connection is closed or has failed.
+     */
+    public int send(byte[] buf, int offset, int length, boolean block) {
+        transport.lock.acquire();
+
+        int queued = 0;
+        while (queued < length && state == stateEstablished) {
+            if (sendQueue.size() >= transport.sendBufferSegments) {
+                if (!block)
+                    break;
+
+                spaceAvailable.sleep();
+                continue;
+            }
+
+            int amount = Math.min(length - queued, transport.maxSegmentData);
+            byte[] data = new byte[amount];
+            System.arraycopy(buf, offset + queued, data, 0, amount);
+            queueSegment(Transport.flagData, data);
+            queued += amount;
+        }
+
+        pump();
+
+        boolean failed = (queued == 0 && length > 0 &&
+                state != stateEstablished);
+
+        transport.lock.release();
+
+        return failed ? -1 : queued;
+    }
+
+    /**
+     * Wait until the send buffer has room for more bytes.
+     *
+     * @return <tt>true</tt> if bytes can be sent, or <tt>false</tt> if the
+     * connection is closed or has failed.
+     */
+    public boolean waitForSpace() {
+        transport.lock.acquire();
+
+        while (state == stateEstablished &&
+                sendQueue.size() >= transport.sendBufferSegments)
+            spaceAvailable.sleep();
+
+        boolean established = (state == stateEstablished);
+
+        transport.lock.release();
+        return established;
+    }
+
+    /**
+     * Read bytes that have arrived on this connection.
+     *
+     * @param    buf    the buffer to store the bytes in.
+     * @param    offset    the offset in the buffer to start storing bytes.
+     * @param    length    the maximum number of bytes to read.
+     * @param    block    <tt>true</tt> to wait until at least one byte has
+     * arrived.
+     * @return the number of bytes read, which is 0 if <i>block</i> is
+     * <tt>false</tt> and nothing has arrived, or -1 if nothing more will
+     * arrive.
+     */
+    public int receive(byte[] buf, int offset, int length, boolean block) {
+        transport.lock.acquire();
+
+        while (block && received.isEmpty() && !peerClosed &&
+                state != stateBroken)
+            dataAvailable.sleep();
+
+        int amount = 0;
+        while (amount < length && !received.isEmpty()) {
+            Segment segment = received.getFirst();
+            int chunk = Math.min(length - amount,
+                    segment.length - receivedOffset);
+            System.arraycopy(segment.data, segment.offset + receivedOffset,
+                    buf, offset + amount, chunk);
+            amount += chunk;
+            receivedOffset += chunk;
+
+            if (receivedOffset == segment.length) {
+                received.removeFirst();
+                receivedOffset = 0;
+            }
+        }
+
+        // the sender may be waiting for us to make room
+        if (amount > 0 && advertisedWindow == 0 && receiveWindow() > 0)
+            sendAck();
+
+        if (amount == 0 && length > 0 && received.isEmpty() &&
+                (peerClosed || state == stateBroken))
+            amount = -1;
+
+        transport.lock.release();
+        return amount;
+    }
+
+    /**
+     * Close this end of the connection. Bytes already queued are still
+     * delivered; the transport forgets the connection once the other end has
+     * closed too.
+     */
+    public void close() {
+        transport.lock.acquire();
+
+        if (state == stateEstablished || state == stateSynSent) {
+            state = stateClosing;
+            queueSegment(Transport.flagFin, null);
+            pump();
+        }
+
+        spaceAvailable.wakeAll();
+        transport.lock.release();
+    }
+
+    /**
+     * Queue a segment that uses a sequence number, so that it is delivered
+     * reliably.
+     */
+    void queueSegment(int flags, byte[] data) {
+        Segment segment = new Segment(nextSeq, flags, data, 0,
+                (data == null) ? 0 : data.length);
+        nextSeq = (nextSeq + 1) % seqLimit;
+        sendQueue.add(segment);
+    }
+
+    /**
+     * Send as many queued segments as the window allows. If the receiver has
+     * no room at all, one segment is still sent when nothing is outstanding,
+     * to learn when room opens up.
+     */
+    void pump() {
+        int window = Math.min(transport.windowSize, peerWindow);
+
+        while (numSent < sendQueue.size() &&
+                (numSent < window || numSent == 0)) {
+            transmit(sendQueue.get(numSent));
+            numSent++;
+        }
+    }
+
+    /**
+     * Called by the transport's timer. Retransmits every outstanding segment
+     * if the oldest has waited too long, and gives up on the connection after
+     * too many timeouts in a row.
+     */
+    void checkTimeout(long now) {
+        if (numSent == 0 || state == stateBroken)
+            return;
+
+        Segment oldest = sendQueue.getFirst();
+        if (now - oldest.sentTime < transport.retransmitTimeout)
+            return;
+
+        if (++timeouts > transport.maxRetransmits) {
+            Lib.debug(dbgNet, "connection to " + remoteLink + ":" + remotePort
+                    + " timed out");
+            fail();
+            return;
+        }
+
+        for (int i = 0; i < numSent; i++) {
+            Segment segment = sendQueue.get(i);
+            segment.retransmitted = true;
+            transmit(segment);
+            transport.numRetransmits++;
+            retransmits++;
+        }
+    }
+
+    /**
+     * Handle a segment that arrived for this connection. Its data is the
+     * <i>length</i> bytes of <i>buf</i> starting at <i>offset</i>, which the
+     * connection keeps rather than copies.
+     */
+    void handleSegment(int flags, int seq, int ack, int window, byte[] buf,
+                       int offset, int length) {
+        if ((flags & Transport.flagAck) != 0)
+            handleAck(ack, window);
+
+        if (state == stateSynSent) {
+            if ((flags & Transport.flagSyn) != 0 && sendQueue.isEmpty()) {
+                state = stateEstablished;
+                receiveSeq = (seq + 1) % seqLimit;
+                stateChanged.wakeAll();
+                sendAck();
+            }
+            return;
+        }
+
+        if ((flags & Transport.flagSyn) != 0) {
+            // the other end has not heard our answer to its SYN
+            if (!sendQueue.isEmpty() &&
+                    (sendQueue.getFirst().flags & Transport.flagSyn) != 0)
+                transmit(sendQueue.getFirst());
+            else
+                sendAck();
+            return;
+        }
+
+        if ((flags & (Transport.flagData | Transport.flagFin)) == 0)
+            return;
+
+        int distance = seqDistance(receiveSeq, seq);
+        boolean fin = (flags & Transport.flagFin) != 0;
+        if (distance >= 0 && distance < transport.windowSize &&
+                (distance > 0 || fin || receiveWindow() > 0)) {
+            if (distance == 0) {
+                accept(new Segment(seq, flags, buf, offset, length));
+
+                // deliver any segments that had arrived early
+                Segment next;
+                while ((next = early.remove(receiveSeq)) != null)
+                    accept(next);
+            } else if (!early.containsKey(seq) && receiveWindow() > 0) {
+                early.put(seq, new Segment(seq, flags, buf, offset, length));
+            }
+        }
+
+        // duplicates and segments beyond the window are acknowledged too, so
+        // that the sender learns where we are
+        sendAck();
+    }
+
+    private void accept(Segment segment) {
+        receiveSeq = (receiveSeq + 1) % seqLimit;
+
+        if ((segment.flags & Transport.flagFin) != 0) {
+            peerClosed = true;
+            transport.connectionClosed(this);
+        } else if (segment.length > 0 && state == stateEstablished) {
+            // data that arrives after we close is thrown away
+            received.add(segment);
+        }
+
+        dataAvailable.wakeAll();
+    }
+
+    private void handleAck(int ack, int window) {
+        timeouts = 0;
+        peerWindow = window;
+
+        // the acknowledgement is cumulative
+        int acked = seqDistance(sendQueue.isEmpty() ? nextSeq
+                : sendQueue.getFirst().seq, ack);
+        if (acked > 0 && acked <= numSent) {
+            long now = Machine.timer().getTime();
+            for (int i = 0; i < acked; i++) {
+                Segment segment = sendQueue.removeFirst();
+                // the round trip of a retransmitted segment is ambiguous
+                if (!segment.retransmitted)
+                    transport.roundTripTime.add(now - segment.sentTime);
+                if ((segment.flags & Transport.flagFin) != 0)
+                    finAcked = true;
+            }
+            numSent -= acked;
+
+            spaceAvailable.wakeAll();
+            if (finAcked)
+                transport.connectionClosed(this);
+        }
+
+        pump();
+    }
+
+    private void transmit(Segment segment) {
+        segment.sentTime = Machine.timer().getTime();
+        transport.sendSegment(this, segment.flags | ackFlag(), segment.seq,
+                segment.data, segment.offset, segment.length);
+    }
+
+    void sendAck() {
+        transport.sendSegment(this, Transport.flagAck, nextSeq, null, 0, 0);
+    }
+
+    private int ackFlag() {
+        return (state == stateSynSent) ? 0 : Transport.flagAck;
+    }
+
+    /**
+     * Return the sequence number to acknowledge, which is the next one
+     * expected.
+     */
+    int getAckSeq() {
+        return receiveSeq;
+    }
+
+    /**
+     * Return the number of segments the receive buffer still has room for,
+     * and remember it as the window last advertised to the sender.
+     */
+    int advertiseWindow() {
+        advertisedWindow = receiveWindow();
+        return advertisedWindow;
+    }
+
+    private int receiveWindow() {
+        return Math.max(0, transport.windowSize - received.size()
+                - early.size());
+    }
+
+    /**
+     * Mark this connection as established by a SYN from the other end.
+     */
+    void establish(int peerSeq) {
+        receiveSeq = (peerSeq + 1) % seqLimit;
+        state = stateEstablished;
+    }
+
+    /**
+     * Give up on this connection: reads return what has already arrived,
+     * and writes fail.
+     */
+    void fail() {
+        state = stateBroken;
+        sendQueue.clear();
+        numSent = 0;
+
+        dataAvailable.wakeAll();
+        spaceAvailable.wakeAll();
+        stateChanged.wakeAll();
+
+        transport.connectionClosed(this);
+    }
+
+    /**
+     * Wait until a connection started with <tt>Transport.connect()</tt> is
+     * established or fails.
+     *
+     * @return <tt>true</tt> if the connection was established.
+     */
+    boolean waitForEstablished() {
+        while (state == stateSynSent)
+            stateChanged.sleep();
+
+        return state == stateEstablished;
+    }
+
+    /**
+     * Test whether the transport can forget this connection: both ends have
+     * closed and our FIN was acknowledged, or the connection failed.
+     */
+    boolean isFinished() {
+        return state == stateBroken ||
+                (state == stateClosing && finAcked && peerClosed);
+    }
+
+    /**
+     * Return how far <i>seq</i> is after <i>base</i>, between
+     * <tt>-seqLimit/2</tt> and <tt>seqLimit/2</tt>.
+     */
+    private static int seqDistance(int base, int seq) {
+        int distance = (seq - base + seqLimit) % seqLimit;
+        return (distance >= seqLimit / 2) ? distance - seqLimit : distance;
+    }
+
+    private static class Segment {
+        Segment(int seq, int flags, byte[] data, int offset, int length) {
+            this.seq = seq;
+            this.flags = flags;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int seq, flags;
+        byte[] data;
+        int offset, length;
+        long sentTime;
+        boolean retransmitted = false;
+    }
+
+    private Transport transport;
+    private int localPort, remoteLink, remotePort;
+
+    int state = stateSynSent;
+    private boolean peerClosed = false, finAcked = false;
+
+    final int initialSeq;
+    private int nextSeq;
+    /**
+     * Segments not yet acknowledged, oldest first. The first
+     * <tt>numSent</tt> have been transmitted.
+     */
+    private LinkedList<Segment> sendQueue = new LinkedList<Segment>();
+    private int numSent = 0;
+    private int peerWindow = 1;
+    private int timeouts = 0;
+    /**
+     * The number of segments retransmitted over the life of the connection.
+     */
+    int retransmits = 0;
+
+    private int receiveSeq = 0;
+    private LinkedList<Segment> received = new LinkedList<Segment>();
+    private int receivedOffset = 0;
+    private HashMap<Integer, Segment> early = new HashMap<Integer, Segment>();
+    private int advertisedWindow = 0;
+
+    private Condition2 dataAvailable, spaceAvailable, stateChanged;
+
+    static final int
+            stateSynSent = 0,
+            stateEstablished = 1,
+            stateClosing = 2,
+            stateBroken = 3;
+
+    static final int seqLimit = 0x10000;
+
+    private static final char dbgNet = 'n';
+}
@@ -0,0 +1,399 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Sends messages too long for one packet as a series of fragments through a
+ * <tt>PostOffice</tt>, and reassembles them at the other end. Like mail, a
+ * message is lost if any of its fragments is lost.
+ *
+ * <p>
+ * Every fragment starts with a fragment header inside the mail message
+ * contents:
+ *
+ * <table>
+ * <tr><td>offset</td><td>size</td><td>value</td></tr>
+ * <tr><td>0</td><td>2</td><td>message id, chosen by the sender</td></tr>
+ * <tr><td>2</td><td>1</td><td>index of this fragment</td></tr>
+ * <tr><td>3</td><td>1</td><td>number of fragments in the message</td></tr>
+ * <tr><td>4</td><td>2</td><td>length of the whole message</td></tr>
+ * </table>
+ *
+ * <p>
+ * Every fragment but the last carries the same amount of the message, so the
+ * receiver can place each fragment as it arrives, in any order. Fragments are
+ * sized to the MTU of the sender's link. A partly reassembled message is
+ * thrown away if it is not finished within <tt>Fragmenter.reassemblyTimeout</tt>
+ * ticks, and the buffers of all partly reassembled messages together never
+ * take more than <tt>Fragmenter.maxReassemblyBytes</tt>: to make room for a
+ * new message, the oldest are thrown away first.
+ *
+ * <p>
+ * Since the network can duplicate packets, the receiver remembers the last
+ * <tt>maxCompleted</tt> messages it delivered for the same timeout, and
+ * throws away any copy of their fragments that turns up later, so that a
+ * message is delivered only once. Each fragmenter numbers its messages from a
+ * random starting id, so that a new one sending from the same ports does not
+ * look like a copy of the old one.
+ */
+public class Fragmenter {
+    /**
+     * Allocate a new fragmenter that sends and receives through the specified
+     * post office.
+     *
+     * @param    postOffice    the post office to use.
+     */
+    public Fragmenter(PostOffice postOffice) {
+        this.postOffice = postOffice;
+        localLink = postOffice.getLink().getLinkAddress();
+
+        maxFragmentData = MailMessage.maxContentsLength(postOffice.getLink())
+                - headerLength;
+        reassemblyTimeout = Config.getInteger("Fragmenter.reassemblyTimeout",
+                20000);
+        maxReassemblyBytes = Config.getInteger("Fragmenter.maxReassemblyBytes",
+                16384);
+        Lib.assertTrue(reassemblyTimeout > 0 && maxReassemblyBytes > 0);
+
+        // a new fragmenter on the same ports, such as a restarted sender,
+        // must not reuse the ids of messages the receiver just delivered
+        nextId = Lib.random(idLimit);
+
+        lock = new Lock();
+    }
+
+    /**
+     * Return the length of the longest message this fragmenter can send.
+     *
+     * @return the longest message length.
+     */
+    public int getMaxMessageLength() {
+        return Math.min(maxFragmentData * maxFragments, maxMessageLength);
+    }
+
+    /**
+     * Send a message to a port on another machine, as many fragments as it
+     * takes. Returns once every fragment is queued on the network link.
+     *
+     * @param    dstLink    the destination link address.
+     * @param    dstPort    the destination port.
+     * @param    srcPort    the source port.
+     * @param    buf    the array holding the message.
+     * @param    offset    the offset of the message in <i>buf</i>.
+     * @param    length    the length of the message.
+     * @return <tt>false</tt> if the message is too long to send.
+     */
+    public boolean send(int dstLink, int dstPort, int srcPort, byte[] buf,
+                        int offset, int length) {
+        if (length < 0 || length > getMaxMessageLength())
+            return false;
+
+        int count = Math.max(1, (length + maxFragmentData - 1) / maxFragmentData);
+        int fragmentData = fragmentData(length, count);
+
+        lock.acquire();
+        int id = nextId;
+        nextId = (nextId + 1) % idLimit;
+        lock.release();
+
+        for (int index = 0; index < count; index++) {
+            int start = index * fragmentData;
+            int amount = Math.min(fragmentData, length - start);
+
+            MailMessage mail;
+
+            try {
+                mail = new MailMessage(dstLink, dstPort, localLink, srcPort,
+                        headerLength + amount);
+            } catch (MalformedPacketException e) {
+                return false;
+            }
+
+            // the header and data are written straight into the packet
+            byte[] packetBytes = mail.packet.packetBytes;
+            int contents = MailMessage.contentsOffset;
+            Lib.bytesFromShort(packetBytes, contents, (short) id);
+            packetBytes[contents + 2] = (byte) index;
+            packetBytes[contents + 3] = (byte) count;
+            Lib.bytesFromShort(packetBytes, contents + 4, (short) length);
+            System.arraycopy(buf, offset + start, packetBytes,
+                    contents + headerLength, amount);
+
+            postOffice.send(mail);
+        }
+
+        numFragmentsSent += count;
+        return true;
+    }
+
+    /**
+     * Retrieve the next whole message on the specified port, waiting if
+     * necessary.
+     *
+     * @param    port    the port on which to wait for a message.
+     * @return the message received.
+     */
+    public Message receive(int port) {
+        while (true) {
+            MailMessage mail = postOffice.receive(port);
+
+            lock.acquire();
+            Message message = handleFragment(mail);
+            lock.release();
+
+            if (message != null)
+                return message;
+        }
+    }
+
+    /**
+     * Add a fragment to the message it belongs to. Called with the lock held.
+     *
+     * @return the message, if this fragment finished it, or <tt>null</tt>.
+     */
+    private Message handleFragment(MailMessage mail) {
+        expire(Machine.timer().getTime());
+
+        byte[] packetBytes = mail.packet.packetBytes;
+        int contents = MailMessage.contentsOffset;
+        int amount = mail.contentsLength - headerLength;
+        if (amount < 0) {
+            numMalformed++;
+            return null;
+        }
+
+        int id = Lib.bytesToUnsignedShort(packetBytes, contents);
+        int index = packetBytes[contents + 2] & 0xFF;
+        int count = packetBytes[contents + 3] & 0xFF;
+        int length = Lib.bytesToUnsignedShort(packetBytes, contents + 4);
+
+        // every fragment of a message must agree on where it goes
+        int fragmentData = (count == 0) ? 0 : fragmentData(length, count);
+        int start = index * fragmentData;
+        if (count == 0 || index >= count || start + amount > length ||
+                amount != Math.min(fragmentData, length - start)) {
+            numMalformed++;
+            return null;
+        }
+
+        long key = reassemblyKey(mail.packet.srcLink, mail.srcPort,
+                mail.dstPort, id);
+
+        // a late copy of a fragment of a message already delivered
+        if (completed.containsKey(key)) {
+            numDuplicates++;
+            return null;
+        }
+
+        // a message in one fragment needs no reassembly
+        if (count == 1) {
+            byte[] data = new byte[length];
+            System.arraycopy(packetBytes, contents + headerLength, data, 0,
+                    length);
+            complete(key);
+            return new Message(mail, data);
+        }
+
+        Partial partial = partials.get(key);
+
+        if (partial == null) {
+            if (!makeRoom(length)) {
+                numDropped++;
+                return null;
+            }
+
+            partial = new Partial(length, count, Machine.timer().getTime());
+            partials.put(key, partial);
+            reassemblyBytes += length;
+        } else if (partial.data.length != length ||
+                partial.received.length != count) {
+            numMalformed++;
+            return null;
+        }
+
+        if (partial.received[index]) {
+            numDuplicates++;
+            return null;
+        }
+
+        System.arraycopy(packetBytes, contents + headerLength, partial.data,
+                start, amount);
+        partial.received[index] = true;
+        if (++partial.numReceived < count)
+            return null;
+
+        partials.remove(key);
+        reassemblyBytes -= length;
+        complete(key);
+        return new Message(mail, partial.data);
+    }
+
+    /**
+     * Remember that a message has been delivered, forgetting the oldest
+     * message remembered if there are too many.
+     */
+    private void complete(long key) {
+        completed.put(key, Machine.timer().getTime());
+        if (completed.size() > maxCompleted) {
+            Iterator<Long> i = completed.values().iterator();
+            i.next();
+            i.remove();
+        }
+
+        numReassembled++;
+    }
+
+    /**
+     * Throw away partly reassembled messages that have waited too long, and
+     * forget messages delivered as long ago. Both are kept oldest first, so
+     * only the oldest need be looked at.
+     */
+    private void expire(long now) {
+        Iterator<Partial> i = partials.values().iterator();
+        while (i.hasNext()) {
+            Partial partial = i.next();
+            if (now - partial.startTime < reassemblyTimeout)
+                break;
+
+            i.remove();
+            reassemblyBytes -= partial.data.length;
+            numExpired++;
+        }
+
+        Iterator<Long> j = completed.values().iterator();
+        while (j.hasNext()) {
+            if (now - j.next() < reassemblyTimeout)
+                break;
+
+            j.remove();
+        }
+    }
+
+    /**
+     * Throw away the oldest partly reassembled messages until a new one of
+     * the specified length fits.
+     *
+     * @return <tt>false</tt> if the message could never fit.
+     */
+    private boolean makeRoom(int length) {
+        if (length > maxReassemblyBytes)
+            return false;
+
+        Iterator<Partial> i = partials.values().iterator();
+        while (reassemblyBytes + length > maxReassemblyBytes) {
+            Partial partial = i.next();
+            i.remove();
+            reassemblyBytes -= partial.data.length;
+            numEvicted++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Print what this fragmenter has seen: fragments sent, messages
+     * reassembled, and the fragments and partial messages thrown away. May
+     * be called at any time.
+     */
+    public void printStats() {
+        System.out.println("Fragmenter: fragments sent " + numFragmentsSent
+                + ", messages reassembled " + numReassembled
+                + ", in reassembly " + partials.size() + " ("
+                + reassemblyBytes + " bytes)");
+        System.out.println("  expired " + numExpired + ", evicted "
+                + numEvicted + ", dropped " + numDropped + ", duplicates "
+                + numDuplicates + ", malformed " + numMalformed);
+    }
+
+    /**
+     * Return how much of a message of the specified length each of its
+     * fragments but the last carries.
+     */
+    private static int fragmentData(int length, int count) {
+        return (length + count - 1) / count;
+    }
+
+    private static long reassemblyKey(int srcLink, int srcPort, int dstPort,
+                                      int id) {
+        return (((long) srcLink * MailMessage.portLimit + srcPort)
+                * MailMessage.portLimit + dstPort) * idLimit + id;
+    }
+
+    /**
+     * A whole message, received and reassembled.
+     */
+    public static class Message {
+        Message(MailMessage mail, byte[] contents) {
+            srcLink = mail.packet.srcLink;
+            srcPort = mail.srcPort;
+            dstPort = mail.dstPort;
+            this.contents = contents;
+        }
+
+        /**
+         * The link address of the machine that sent the message.
+         */
+        public int srcLink;
+        /**
+         * The port the message was sent from.
+         */
+        public int srcPort;
+        /**
+         * The port the message was sent to.
+         */
+        public int dstPort;
+        /**
+         * The contents of the message.
+         */
+        public byte[] contents;
+    }
+
+    private static class Partial {
+        Partial(int length, int count, long startTime) {
+            data = new byte[length];
+            received = new boolean[count];
+            this.startTime = startTime;
+        }
+
+        byte[] data;
+        boolean[] received;
+        int numReceived = 0;
+        long startTime;
+    }
+
+    private PostOffice postOffice;
+    private int localLink;
+    private int maxFragmentData;
+    private int reassemblyTimeout, maxReassemblyBytes;
+
+    private Lock lock;
+    private int nextId;
+    /**
+     * Partly reassembled messages, oldest first.
+     */
+    private LinkedHashMap<Long, Partial> partials =
+            new LinkedHashMap<Long, Partial>();
+    private int reassemblyBytes = 0;
+    /**
+     * The times recently delivered messages were finished, oldest first.
+     */
+    private LinkedHashMap<Long, Long> completed = new LinkedHashMap<Long, Long>();
+
+    private int numFragmentsSent = 0, numReassembled = 0;
+    private int numExpired = 0, numEvicted = 0, numDropped = 0;
+    private int numDuplicates = 0, numMalformed = 0;
+
+    /**
+     * The number of bytes in a fragment header.
+     */
+    public static final int headerLength = 6;
+
+    private static final int maxFragments = 255;
+    private static final int maxCompleted = 1024;
+    private static final int maxMessageLength = 0xFFFF;
+    private static final int idLimit = 0x10000;
+}
@@ -4,7 +4,9 @@ import nachos.machine.*;
 
 /**
  * A mail message. Includes a packet header, a mail header, and the actual
- * payload.
+ * payload, all in the one array of its packet: the payload is the
+ * <tt>contentsLength</tt> bytes of <tt>packet.packetBytes</tt> starting at
+ * <tt>contentsOffset</tt>.
  *
  * @see    nachos.machine.Packet
  */
@@ -20,47 +22,97 @@ public class MailMessage {
      */
     public MailMessage(int dstLink, int dstPort, int srcLink, int srcPort,
                        byte[] contents) throws MalformedPacketException {
+        this(dstLink, dstPort, srcLink, srcPort, contents, 0, contents.length);
+    }
+
+    /**
+     * Allocate a new mail message to be sent, with the contents copied once,
+     * straight into its packet, from part of an array.
+     *
+     * @param    dstLink        the destination link address.
+     * @param    dstPort        the destination port.
+     * @param    srcLink        the source link address.
+     * @param    srcPort        the source port.
+     * @param    buf        the array holding the contents.
+     * @param    offset        the offset of the contents in <i>buf</i>.
+     * @param    length        the number of bytes of contents.
+     */
+    public MailMessage(int dstLink, int dstPort, int srcLink, int srcPort,
+                       byte[] buf, int offset, int length)
+            throws MalformedPacketException {
+        this(dstLink, dstPort, srcLink, srcPort, length);
+
+        System.arraycopy(buf, offset, packet.packetBytes, contentsOffset,
+                length);
+    }
+
+    /**
+     * Allocate a new mail message to be sent, leaving its contents for the
+     * caller to fill in: they are the <i>length</i> bytes of
+     * <tt>packet.packetBytes</tt> starting at <tt>contentsOffset</tt>.
+     *
+     * @param    dstLink        the destination link address.
+     * @param    dstPort        the destination port.
+     * @param    srcLink        the source link address.
+     * @param    srcPort        the source port.
+     * @param    length        the number of bytes of contents.
+     */
+    public MailMessage(int dstLink, int dstPort, int srcLink, int srcPort,
+                       int length) throws MalformedPacketException {
         // make sure the paramters are valid
         if (dstPort < 0 || dstPort >= portLimit ||
                 srcPort < 0 || srcPort >= portLimit ||
-                contents.length > maxContentsLength)
+                length < 0 || length > maxJumboContentsLength)
             throw new MalformedPacketException();
 
-        this.dstPort = (byte) dstPort;
-        this.srcPort = (byte) srcPort;
-        this.contents = contents;
-
-        byte[] packetContents = new byte[headerLength + contents.length];
+        this.dstPort = dstPort;
+        this.srcPort = srcPort;
+        contentsLength = length;
 
-        packetContents[0] = (byte) dstPort;
-        packetContents[1] = (byte) srcPort;
+        byte[] packetBytes = Packet.allocate(headerLength + length);
 
-        System.arraycopy(contents, 0, packetContents, headerLength,
-                contents.length);
+        packetBytes[Packet.headerLength] = (byte) dstPort;
+        packetBytes[Packet.headerLength + 1] = (byte) srcPort;
 
-        packet = new Packet(dstLink, srcLink, packetContents);
+        packet = new Packet(dstLink, srcLink, packetBytes,
+                headerLength + length);
     }
 
     /**
      * Allocate a new mail message using the specified packet from the network.
+     * Nothing is copied; the message is a view of the packet.
      *
      * @param    packet    the packet containg the mail message.
      */
     public MailMessage(Packet packet) throws MalformedPacketException {
         this.packet = packet;
 
+        byte[] packetBytes = packet.packetBytes;
+
         // make sure we have a valid header
-        if (packet.contents.length < headerLength ||
-                packet.contents[0] < 0 || packet.contents[0] >= portLimit ||
-                packet.contents[1] < 0 || packet.contents[1] >= portLimit)
+        if (packet.contentsLength < headerLength ||
+                packetBytes[Packet.headerLength] < 0 ||
+                packetBytes[Packet.headerLength] >= portLimit ||
+                packetBytes[Packet.headerLength + 1] < 0 ||
+                packetBytes[Packet.headerLength + 1] >= portLimit)
             throw new MalformedPacketException();
 
-        dstPort = packet.contents[0];
-        srcPort = packet.contents[1];
+        dstPort = packetBytes[Packet.headerLength];
+        srcPort = packetBytes[Packet.headerLength + 1];
+        contentsLength = packet.contentsLength - headerLength;
+    }
 
-        contents = new byte[packet.contents.length - headerLength];
-        System.arraycopy(packet.contents, headerLength, contents, 0,
-                contents.length);
+    /**
+     * Return a copy of the contents of this message, excluding the mail
+     * message header.
+     *
+     * @return the contents of this message.
+     */
+    public byte[] getContents() {
+        byte[] contents = new byte[contentsLength];
+        System.arraycopy(packet.packetBytes, contentsOffset, contents, 0,
+                contentsLength);
+        return contents;
     }
 
     /**
@@ -69,7 +121,7 @@ public class MailMessage {
     public String toString() {
         return "from (" + packet.srcLink + ":" + srcPort +
                 ") to (" + packet.dstLink + ":" + dstPort +
-                "), " + contents.length + " bytes";
+                "), " + contentsLength + " bytes";
     }
 
     /**
@@ -85,9 +137,17 @@ public class MailMessage {
      */
     public int srcPort;
     /**
-     * The contents of this message, excluding the mail message header.
+     * The number of bytes of contents in this message, excluding the mail
+     * message header.
+     */
+    public int contentsLength;
+
+    /**
+     * The offset of the contents of a message in its packet's
+     * <tt>packetBytes</tt>, past both headers.
      */
-    public byte[] contents;
+    public static final int contentsOffset =
+            Packet.headerLength + MailMessage.headerLength;
 
     /**
      * The number of bytes in a mail header. The header is formatted as
@@ -106,6 +166,23 @@ public class MailMessage {
      */
     public static final int maxContentsLength =
             Packet.maxContentsLength - headerLength;
+    /**
+     * Maximum payload of a single message on a link with a larger MTU. The
+     * payload a particular link can carry is <tt>maxContentsLength(link)</tt>.
+     */
+    public static final int maxJumboContentsLength =
+            Packet.maxJumboContentsLength - headerLength;
+
+    /**
+     * Return the maximum payload of a single message sent on the specified
+     * link.
+     *
+     * @param    link    the link the message will be sent on.
+     * @return the most bytes of contents the message can have.
+     */
+    public static int maxContentsLength(NetworkLink link) {
+        return link.getMTU() - Packet.headerLength - headerLength;
+    }
 
     /**
      * The upper limit on mail ports. All ports fall between <tt>0</tt> and
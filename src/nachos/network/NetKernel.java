@@ -24,6 +24,7 @@ public class NetKernel extends VMKernel {
         super.initialize(args);
 
         postOffice = new PostOffice();
+        transport = new Transport(postOffice);
     }
 
     /**
@@ -31,10 +32,35 @@ public class NetKernel extends VMKernel {
      * 1 and sends replies. Then ping one or two hosts. Note that this test
      * assumes that the network is reliable (i.e. that the network's
      * reliability is 1.0).
+     *
+     * <p>
+     * If <tt>NetKernel.fabricTestNodes</tt> is set, first run a ring of that
+     * many simulated machines on links of their own, each sending
+     * <tt>NetKernel.fabricTestMessages</tt> messages to the next. If
+     * <tt>NetKernel.transportTestBytes</tt> is set, also stream that many
+     * bytes over a transport connection between two simulated machines. If
+     * <tt>NetKernel.fragmentTestBytes</tt> is set, also send
+     * <tt>NetKernel.fragmentTestMessages</tt> messages of that length in
+     * fragments, to compare the cost of different <tt>NetworkLink.mtu</tt>
+     * settings.
      */
     public void selfTest() {
         super.selfTest();
 
+        int numNodes = Config.getInteger("NetKernel.fabricTestNodes", 0);
+        if (numNodes > 0)
+            fabricTest(numNodes,
+                    Config.getInteger("NetKernel.fabricTestMessages", 100));
+
+        int numBytes = Config.getInteger("NetKernel.transportTestBytes", 0);
+        if (numBytes > 0)
+            transportTest(numBytes);
+
+        int messageLength = Config.getInteger("NetKernel.fragmentTestBytes", 0);
+        if (messageLength > 0)
+            fragmentTest(messageLength,
+                    Config.getInteger("NetKernel.fragmentTestMessages", 20));
+
         KThread serverThread = new KThread(new Runnable() {
             public void run() {
                 pingServer();
@@ -56,6 +82,203 @@ public class NetKernel extends VMKernel {
             ping(1 - local);
     }
 
+    /**
+     * Pass messages around a ring of simulated machines and report the
+     * throughput. Each machine has its own network link and post office, and
+     * sends to port 1 of the next machine while receiving on its own port 1.
+     */
+    private void fabricTest(int numNodes, final int numMessages) {
+        final PostOffice[] nodes = new PostOffice[numNodes];
+        for (int i = 0; i < numNodes; i++)
+            nodes[i] = new PostOffice(Machine.createNetworkLink());
+
+        long startTime = Machine.timer().getTime();
+        long startHostTime = System.nanoTime();
+
+        KThread[] threads = new KThread[numNodes * 2];
+        for (int i = 0; i < numNodes; i++) {
+            final PostOffice node = nodes[i];
+            final PostOffice next = nodes[(i + 1) % numNodes];
+
+            threads[2 * i] = new KThread(new Runnable() {
+                public void run() {
+                    int srcLink = node.getLink().getLinkAddress();
+                    int dstLink = next.getLink().getLinkAddress();
+                    for (int j = 0; j < numMessages; j++) {
+                        try {
+                            node.send(new MailMessage(dstLink, 1, srcLink, 0,
+                                    Lib.bytesFromInt(j)));
+                        } catch (MalformedPacketException e) {
+                            Lib.assertNotReached();
+                        }
+                    }
+                }
+            }).setName("fabric sender " + i);
+
+            threads[2 * i + 1] = new KThread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < numMessages; j++) {
+                        MailMessage mail = node.receive(1);
+                        Lib.assertTrue(Lib.bytesToInt(mail.packet.packetBytes,
+                                MailMessage.contentsOffset) == j,
+                                "fabric test message out of order");
+                    }
+                }
+            }).setName("fabric receiver " + i);
+        }
+
+        for (KThread thread : threads)
+            thread.fork();
+        for (KThread thread : threads)
+            thread.join();
+
+        long ticks = Machine.timer().getTime() - startTime;
+        long nanos = System.nanoTime() - startHostTime;
+        int total = numNodes * numMessages;
+
+        System.out.println("fabric test: " + numNodes + " nodes, " + total
+                + " messages in " + ticks + " ticks ("
+                + String.format("%.2f", total * 1000.0 / Math.max(ticks, 1))
+                + " messages/1000 ticks, "
+                + String.format("%.0f", total * 1e9 / Math.max(nanos, 1))
+                + " messages/s)");
+    }
+
+    /**
+     * Stream bytes over a transport connection between two simulated
+     * machines, check that they all arrive in order, and report the
+     * throughput and the number of retransmissions.
+     */
+    private void transportTest(final int numBytes) {
+        final Transport client =
+                new Transport(new PostOffice(Machine.createNetworkLink()));
+        final Transport server =
+                new Transport(new PostOffice(Machine.createNetworkLink()));
+        final int serverLink = server.getLinkAddress();
+
+        long startTime = Machine.timer().getTime();
+
+        KThread sender = new KThread(new Runnable() {
+            public void run() {
+                Connection connection = client.connect(serverLink, 1);
+                Lib.assertTrue(connection != null,
+                        "transport test could not connect");
+
+                byte[] buf = new byte[256];
+                for (int sent = 0; sent < numBytes; ) {
+                    int amount = Math.min(buf.length, numBytes - sent);
+                    for (int i = 0; i < amount; i++)
+                        buf[i] = (byte) (sent + i);
+                    Lib.assertTrue(connection.send(buf, 0, amount, true) == amount);
+                    sent += amount;
+                }
+
+                connection.close();
+            }
+        }).setName("transport sender");
+
+        KThread receiver = new KThread(new Runnable() {
+            public void run() {
+                Connection connection = server.accept(1, true);
+
+                byte[] buf = new byte[256];
+                int received = 0, amount;
+                while ((amount = connection.receive(buf, 0, buf.length,
+                        true)) > 0) {
+                    for (int i = 0; i < amount; i++)
+                        Lib.assertTrue(buf[i] == (byte) (received + i),
+                                "transport test data out of order");
+                    received += amount;
+                }
+
+                Lib.assertTrue(received == numBytes,
+                        "transport test lost data");
+                connection.close();
+            }
+        }).setName("transport receiver");
+
+        receiver.fork();
+        sender.fork();
+        receiver.join();
+        sender.join();
+
+        long ticks = Machine.timer().getTime() - startTime;
+
+        System.out.println("transport test: " + numBytes + " bytes in "
+                + ticks + " ticks ("
+                + String.format("%.2f", numBytes * 1000.0 / Math.max(ticks, 1))
+                + " bytes/1000 ticks), "
+                + (client.getRetransmits() + server.getRetransmits())
+                + " retransmissions");
+        client.printStats();
+    }
+
+    /**
+     * Send long messages in fragments between two simulated machines, check
+     * that each is reassembled intact, and report the throughput and the
+     * number of packets it took. Assumes the network is reliable.
+     */
+    private void fragmentTest(final int messageLength, final int numMessages) {
+        final Fragmenter sender =
+                new Fragmenter(new PostOffice(Machine.createNetworkLink()));
+        final PostOffice receiverPostOffice =
+                new PostOffice(Machine.createNetworkLink());
+        final Fragmenter receiver = new Fragmenter(receiverPostOffice);
+        final int receiverLink =
+                receiverPostOffice.getLink().getLinkAddress();
+
+        Lib.assertTrue(messageLength <= sender.getMaxMessageLength(),
+                "fragment test messages are too long for this MTU");
+
+        long startTime = Machine.timer().getTime();
+        long startHostTime = System.nanoTime();
+
+        KThread sendThread = new KThread(new Runnable() {
+            public void run() {
+                byte[] buf = new byte[messageLength];
+                for (int i = 0; i < numMessages; i++) {
+                    for (int j = 0; j < messageLength; j++)
+                        buf[j] = (byte) (i + j);
+                    Lib.assertTrue(sender.send(receiverLink, 1, 0, buf, 0,
+                            messageLength));
+                }
+            }
+        }).setName("fragment sender");
+
+        KThread receiveThread = new KThread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < numMessages; i++) {
+                    byte[] contents = receiver.receive(1).contents;
+                    Lib.assertTrue(contents.length == messageLength,
+                            "fragment test message has the wrong length");
+                    for (int j = 0; j < messageLength; j++)
+                        Lib.assertTrue(contents[j] == (byte) (i + j),
+                                "fragment test message corrupted");
+                }
+            }
+        }).setName("fragment receiver");
+
+        receiveThread.fork();
+        sendThread.fork();
+        receiveThread.join();
+        sendThread.join();
+
+        long ticks = Machine.timer().getTime() - startTime;
+        long nanos = System.nanoTime() - startHostTime;
+        int total = messageLength * numMessages;
+
+        System.out.println("fragment test: " + numMessages + " messages of "
+                + messageLength + " bytes, MTU "
+                + receiverPostOffice.getLink().getMTU() + ", in " + ticks
+                + " ticks ("
+                + String.format("%.2f", total * 1000.0 / Math.max(ticks, 1))
+                + " bytes/1000 ticks, "
+                + String.format("%.0f", total * 1e9 / Math.max(nanos, 1))
+                + " bytes/s)");
+        sender.printStats();
+        receiver.printStats();
+    }
+
     private void ping(int dstLink) {
         int srcLink = Machine.networkLink().getLinkAddress();
 
@@ -92,7 +315,8 @@ public class NetKernel extends VMKernel {
             try {
                 ack = new MailMessage(ping.packet.srcLink, ping.srcPort,
                         ping.packet.dstLink, ping.dstPort,
-                        ping.contents);
+                        ping.packet.packetBytes, MailMessage.contentsOffset,
+                        ping.contentsLength);
             } catch (MalformedPacketException e) {
                 // should never happen...
                 continue;
@@ -109,15 +333,33 @@ public class NetKernel extends VMKernel {
         super.run();
     }
 
+    /**
+     * Print the statistics kept by this kernel's network link, post office
+     * and transport. Called when the kernel terminates, and may be called at
+     * any other time.
+     */
+    public void printNetworkStats() {
+        postOffice.getLink().printStats();
+        postOffice.printStats();
+        transport.printStats();
+    }
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        printNetworkStats();
+
         super.terminate();
     }
 
     private PostOffice postOffice;
 
+    /**
+     * The reliable transport running over this kernel's post office.
+     */
+    public static Transport transport = null;
+
     // dummy variables to make javac smarter
     private static NetProcess dummy1 = null;
 }
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+
 /**
  * A <tt>VMProcess</tt> that supports networking syscalls.
  */
@@ -16,7 +18,19 @@ public class NetProcess extends VMProcess {
         super();
     }
 
+    /**
+     * Return the console, open for reading without waiting, so that programs
+     * such as <tt>chat</tt> can poll it between reads of their connections.
+     *
+     * @return the console, open for non-blocking reading.
+     */
+    protected OpenFile openConsoleInput() {
+        return UserKernel.console.openForReading(false);
+    }
+
     private static final int
+            syscallRead = 6,
+            syscallWrite = 7,
             syscallConnect = 11,
             syscallAccept = 12;
 
@@ -30,6 +44,10 @@ public class NetProcess extends VMProcess {
      * <tr><td>12</td><td><tt>int  accept(int port);</tt></td></tr>
      * </table>
      *
+     * <p>
+     * <tt>read()</tt> and <tt>write()</tt> on a connection's file descriptor
+     * are also handled here.
+     *
      * @param    syscall    the syscall number.
      * @param    a0    the first syscall argument.
      * @param    a1    the second syscall argument.
@@ -39,8 +57,147 @@ public class NetProcess extends VMProcess {
      */
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
         switch (syscall) {
-            default:
-                return super.handleSyscall(syscall, a0, a1, a2, a3);
+            case syscallConnect:
+                return handleConnect(a0, a1);
+            case syscallAccept:
+                return handleAccept(a0);
+            case syscallRead:
+                if (getOpenFile(a0) instanceof Socket)
+                    return handleSocketRead((Socket) getOpenFile(a0), a1, a2);
+                break;
+            case syscallWrite:
+                if (getOpenFile(a0) instanceof Socket)
+                    return handleSocketWrite((Socket) getOpenFile(a0), a1, a2);
+                break;
+        }
+
+        return super.handleSyscall(syscall, a0, a1, a2, a3);
+    }
+
+    /**
+     * Handle the connect() system call. Waits until the other end accepts
+     * the connection or the transport gives up on it.
+     */
+    private int handleConnect(int host, int port) {
+        if (freeFileDescriptors() < 1)
+            return -1;
+
+        Connection connection = NetKernel.transport.connect(host, port);
+        if (connection == null)
+            return -1;
+
+        return installFile(new Socket(connection));
+    }
+
+    /**
+     * Handle the accept() system call. Never waits for a connection.
+     */
+    private int handleAccept(int port) {
+        if (freeFileDescriptors() < 1)
+            return -1;
+
+        Connection connection = NetKernel.transport.accept(port, false);
+        if (connection == null)
+            return -1;
+
+        return installFile(new Socket(connection));
+    }
+
+    /**
+     * Handle the read() system call on a connection. Takes whatever has
+     * arrived, straight into the physical pages backing the buffer, without
+     * waiting for more. Like <tt>read()</tt> on a file, the buffer is
+     * translated a piece at a time if need be.
+     */
+    private int handleSocketRead(Socket socket, int buffer, int count) {
+        if (count < 0)
+            return -1;
+
+        byte[] memory = Machine.processor().getMemory();
+        int amount = 0;
+        while (amount < count) {
+            ArrayList<MemorySegment> segments =
+                    getMemorySegments(buffer + amount, count - amount, true);
+            if (segments.isEmpty())
+                return (amount == 0) ? -1 : amount;
+
+            for (MemorySegment segment : segments) {
+                int chunk = socket.connection.receive(memory, segment.offset,
+                        segment.length, false);
+                if (chunk == -1)
+                    return (amount == 0) ? -1 : amount;
+
+                amount += chunk;
+                if (chunk < segment.length)
+                    return amount;
+            }
+        }
+
+        return amount;
+    }
+
+    /**
+     * Handle the write() system call on a connection. The connection cuts
+     * segments straight from the physical pages backing the buffer. When
+     * its send buffer fills, this waits for room and then carries on with the
+     * rest of the buffer, translated a piece at a time like <tt>read()</tt>.
+     * If the connection fails partway, the bytes already queued are
+     * reported.
+     */
+    private int handleSocketWrite(Socket socket, int buffer, int count) {
+        if (count < 0)
+            return -1;
+
+        byte[] memory = Machine.processor().getMemory();
+        int written = 0;
+        while (written < count) {
+            ArrayList<MemorySegment> segments =
+                    getMemorySegments(buffer + written, count - written, false);
+            if (segments.isEmpty())
+                return (written == 0) ? -1 : written;
+
+            for (MemorySegment segment : segments) {
+                int amount = socket.connection.send(memory, segment.offset,
+                        segment.length, false);
+                if (amount == -1)
+                    return (written == 0) ? -1 : written;
+
+                written += amount;
+                if (amount < segment.length)
+                    break;
+            }
+
+            if (written < count && !socket.connection.waitForSpace())
+                return (written == 0) ? -1 : written;
+        }
+
+        return written;
+    }
+
+    /**
+     * A connection open on a file descriptor. Closing the last descriptor
+     * closes the connection.
+     */
+    private static class Socket extends OpenFile {
+        Socket(Connection connection) {
+            super(null, "socket " + connection.getRemoteLink() + ":"
+                    + connection.getRemotePort());
+
+            this.connection = connection;
         }
+
+        public int read(byte[] buf, int offset, int length) {
+            return connection.receive(buf, offset, length, false);
+        }
+
+        public int write(byte[] buf, int offset, int length) {
+            return connection.send(buf, offset, length, true);
+        }
+
+        public void close() {
+            connection.close();
+        }
+
+        private final Connection connection;
     }
 }
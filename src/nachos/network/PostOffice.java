@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.LinkedList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -10,25 +12,39 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  *
  * <p>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * Messages are placed in their queues by the receive interrupt handler
+ * itself, so each queue is guarded by disabling interrupts rather than by a
+ * lock. A queue holds at most <tt>PostOffice.mailboxSize</tt> messages; a
+ * message that arrives at a full queue is dropped, just as the network might
+ * drop it. Only threads waiting on the port a message arrives on are woken.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-     * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * Allocate a new post office, with a mailbox for each port, and register
+     * the interrupt handlers with the network hardware.
      */
     public PostOffice() {
-        messageReceived = new Semaphore(0);
+        this(Machine.networkLink());
+    }
+
+    /**
+     * Allocate a new post office for the specified network link, which may be
+     * one made with <tt>Machine.createNetworkLink()</tt>.
+     *
+     * @param    link    the network link to send and receive messages on.
+     */
+    public PostOffice(NetworkLink link) {
+        this.link = link;
+
         messageSent = new Semaphore(0);
         sendLock = new Lock();
 
-        queues = new SynchList[MailMessage.portLimit];
-        for (int i = 0; i < queues.length; i++)
-            queues[i] = new SynchList();
+        int mailboxSize = Config.getInteger("PostOffice.mailboxSize", 64);
+        Lib.assertTrue(mailboxSize > 0);
+
+        mailboxes = new Mailbox[MailMessage.portLimit];
+        for (int i = 0; i < mailboxes.length; i++)
+            mailboxes[i] = new Mailbox(mailboxSize);
 
         Runnable receiveHandler = new Runnable() {
             public void run() {
@@ -40,16 +56,7 @@ public class PostOffice {
                 sendInterrupt();
             }
         };
-        Machine.networkLink().setInterruptHandlers(receiveHandler,
-                sendHandler);
-
-        KThread t = new KThread(new Runnable() {
-            public void run() {
-                postalDelivery();
-            }
-        });
-
-        t.fork();
+        link.setInterruptHandlers(receiveHandler, sendHandler);
     }
 
     /**
@@ -59,11 +66,11 @@ public class PostOffice {
      * @return the message received.
      */
     public MailMessage receive(int port) {
-        Lib.assertTrue(port >= 0 && port < queues.length);
+        Lib.assertTrue(port >= 0 && port < mailboxes.length);
 
         Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-        MailMessage mail = (MailMessage) queues[port].removeFirst();
+        MailMessage mail = select(new int[]{port}, true);
 
         if (Lib.test(dbgNet))
             System.out.println("got mail on port " + port + ": " + mail);
@@ -72,41 +79,106 @@ public class PostOffice {
     }
 
     /**
-     * Wait for incoming messages, and then put them in the correct mailbox.
+     * Retrieve a message on the specified port if one has arrived, without
+     * waiting.
+     *
+     * @param    port    the port to check for a message.
+     * @return the message received, or <tt>null</tt> if there is none.
      */
-    private void postalDelivery() {
-        while (true) {
-            messageReceived.P();
+    public MailMessage tryReceive(int port) {
+        Lib.assertTrue(port >= 0 && port < mailboxes.length);
 
-            Packet p = Machine.networkLink().receive();
+        return select(new int[]{port}, false);
+    }
+
+    /**
+     * Retrieve a message on any of the specified ports. If more than one has
+     * mail, the message comes from the first of them in <i>ports</i>.
+     *
+     * @param    ports    the ports to check for a message.
+     * @param    block    <tt>true</tt> to wait until a message arrives on one
+     * of the ports.
+     * @return the message received, or <tt>null</tt> if <i>block</i> is
+     * <tt>false</tt> and none of the ports has mail.
+     */
+    public MailMessage select(int[] ports, boolean block) {
+        for (int port : ports)
+            Lib.assertTrue(port >= 0 && port < mailboxes.length);
 
+        boolean intStatus = Machine.interrupt().disable();
+
+        MailMessage mail;
+        while ((mail = poll(ports)) == null && block) {
+            // one semaphore, registered with every port, wakes us for the
+            // first message to arrive on any of them
+            Semaphore mailArrived = new Semaphore(0);
+            for (int port : ports)
+                mailboxes[port].waiters.add(mailArrived);
+
+            mailArrived.P();
+
+            for (int port : ports)
+                mailboxes[port].waiters.remove(mailArrived);
+        }
+
+        Machine.interrupt().restore(intStatus);
+
+        return mail;
+    }
+
+    private MailMessage poll(int[] ports) {
+        for (int port : ports) {
+            MailMessage mail = mailboxes[port].remove();
+            if (mail != null)
+                return mail;
+        }
+
+        return null;
+    }
+
+    /**
+     * Called when packets have arrived and can be dequeued from the network
+     * link. Puts each message straight in its mailbox, and wakes the threads
+     * waiting on that mailbox.
+     */
+    private void receiveInterrupt() {
+        // the link may have received a whole batch of packets
+        Packet p;
+        while ((p = link.receive()) != null) {
             MailMessage mail;
 
             try {
                 mail = new MailMessage(p);
             } catch (MalformedPacketException e) {
+                numMalformed++;
                 continue;
             }
 
+            Mailbox mailbox = mailboxes[mail.dstPort];
+            if (!mailbox.add(mail)) {
+                Lib.debug(dbgNet, "mailbox full, dropping mail " + mail);
+                mailbox.numDropped++;
+                continue;
+            }
+
+            mailbox.numDelivered++;
+            mailbox.maxDepth = Math.max(mailbox.maxDepth, mailbox.count);
+            mailboxDepth.add(mailbox.count);
+
             if (Lib.test(dbgNet))
-                System.out.println("delivering mail to port " + mail.dstPort
-                        + ": " + mail);
+                System.out.println("delivering mail to port "
+                        + mail.dstPort + ": " + mail);
 
-            // atomically add message to the mailbox and wake a waiting thread
-            queues[mail.dstPort].add(mail);
+            for (Semaphore waiter : mailbox.waiters)
+                waiter.V();
+            mailbox.waiters.clear();
         }
     }
 
     /**
-     * Called when a packet has arrived and can be dequeued from the network
-     * link.
-     */
-    private void receiveInterrupt() {
-        messageReceived.V();
-    }
-
-    /**
-     * Send a message to a mailbox on a remote machine.
+     * Send a message to a mailbox on a remote machine. Returns as soon as the
+     * message is queued on the network link, waiting only if the link's send
+     * queue is full.
      */
     public void send(MailMessage mail) {
         if (Lib.test(dbgNet))
@@ -114,24 +186,104 @@ public class PostOffice {
 
         sendLock.acquire();
 
-        Machine.networkLink().send(mail.packet);
-        messageSent.P();
+        boolean intStatus = Machine.interrupt().disable();
+        while (!link.canSend()) {
+            senderWaiting = true;
+            messageSent.P();
+        }
+        link.send(mail.packet);
+        Machine.interrupt().restore(intStatus);
 
         sendLock.release();
     }
 
     /**
-     * Called when a packet has been sent and another can be queued to the
-     * network link. Note that this is called even if the previous packet was
+     * Called when the packets queued on the network link have been sent and
+     * more can be queued. Note that this is called even if some of them were
      * dropped.
      */
     private void sendInterrupt() {
-        messageSent.V();
+        if (senderWaiting) {
+            senderWaiting = false;
+            messageSent.V();
+        }
+    }
+
+    /**
+     * Print what this post office has seen: a line for each port that has
+     * received mail, with how many messages were delivered to it, how many
+     * were dropped because its mailbox was full, and the most that waited in
+     * it at once, followed by a histogram of mailbox depths. May be called at
+     * any time.
+     */
+    public void printStats() {
+        System.out.println("Post office: malformed " + numMalformed);
+        for (int i = 0; i < mailboxes.length; i++) {
+            Mailbox mailbox = mailboxes[i];
+            if (mailbox.numDelivered > 0 || mailbox.numDropped > 0)
+                System.out.println("  port " + i + ": delivered "
+                        + mailbox.numDelivered + ", dropped "
+                        + mailbox.numDropped + ", max depth "
+                        + mailbox.maxDepth);
+        }
+        System.out.println("  " + mailboxDepth);
+    }
+
+    /**
+     * Return the network link this post office uses.
+     *
+     * @return the network link.
+     */
+    public NetworkLink getLink() {
+        return link;
     }
 
-    private SynchList[] queues;
-    private Semaphore messageReceived;    // V'd when a message can be dequeued
+    /**
+     * A bounded queue of messages for one port, kept in a circular array.
+     * Accessed only with interrupts disabled.
+     */
+    private static class Mailbox {
+        Mailbox(int size) {
+            messages = new MailMessage[size];
+        }
+
+        boolean add(MailMessage mail) {
+            if (count == messages.length)
+                return false;
+
+            messages[(head + count) % messages.length] = mail;
+            count++;
+            return true;
+        }
+
+        MailMessage remove() {
+            if (count == 0)
+                return null;
+
+            MailMessage mail = messages[head];
+            messages[head] = null;
+            head = (head + 1) % messages.length;
+            count--;
+            return mail;
+        }
+
+        private MailMessage[] messages;
+        private int head = 0, count = 0;
+
+        int numDelivered = 0, numDropped = 0, maxDepth = 0;
+        /**
+         * Semaphores of the threads waiting for mail on this port.
+         */
+        LinkedList<Semaphore> waiters = new LinkedList<Semaphore>();
+    }
+
+    private NetworkLink link;
+    private Mailbox[] mailboxes;
     private Semaphore messageSent;    // V'd when a message can be queued
+    private boolean senderWaiting = false;
+
+    private int numMalformed = 0;
+    private Histogram mailboxDepth = new Histogram("mailbox depth");
     private Lock sendLock;
 
     private static final char dbgNet = 'n';
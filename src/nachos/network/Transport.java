@@ -0,0 +1,374 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A reliable, connection-oriented transport built on the unreliable mail
+ * messages of a <tt>PostOffice</tt>. A connection is identified by its local
+ * port and the link address and port of the other end, so one local port can
+ * carry connections to many remote ports.
+ *
+ * <p>
+ * Every segment starts with a transport header inside the mail message
+ * contents:
+ *
+ * <table>
+ * <tr><td>offset</td><td>size</td><td>value</td></tr>
+ * <tr><td>0</td><td>1</td><td>flags: SYN, ACK, FIN or DATA</td></tr>
+ * <tr><td>1</td><td>2</td><td>sequence number</td></tr>
+ * <tr><td>3</td><td>2</td><td>next sequence number expected</td></tr>
+ * <tr><td>5</td><td>1</td><td>free space in the receive window, in
+ * segments</td></tr>
+ * </table>
+ *
+ * <p>
+ * SYN and FIN segments take a sequence number, like data, and so are
+ * retransmitted until acknowledged. A single timer thread, driven by the
+ * alarm, retransmits outstanding segments for every connection.
+ * <tt>nachos.conf</tt> sets the window (<tt>Transport.windowSize</tt>), the
+ * retransmission timeout in ticks (<tt>Transport.retransmitTimeout</tt>),
+ * and how many timeouts in a row end a connection
+ * (<tt>Transport.maxRetransmits</tt>).
+ */
+public class Transport {
+    /**
+     * Allocate a new transport that sends and receives through the specified
+     * post office, and start its timer.
+     *
+     * @param    postOffice    the post office to use.
+     */
+    public Transport(PostOffice postOffice) {
+        this.postOffice = postOffice;
+        localLink = postOffice.getLink().getLinkAddress();
+
+        windowSize = Math.min(Config.getInteger("Transport.windowSize", 16),
+                maxWindowSize);
+        sendBufferSegments = windowSize * 4;
+        retransmitTimeout = Config.getInteger("Transport.retransmitTimeout",
+                10000);
+        maxRetransmits = Config.getInteger("Transport.maxRetransmits", 20);
+        // segments fill whatever MTU the link has
+        maxSegmentData = MailMessage.maxContentsLength(postOffice.getLink())
+                - headerLength;
+        Lib.assertTrue(windowSize > 0 && retransmitTimeout > 0);
+
+        lock = new Lock();
+
+        new KThread(new Runnable() {
+            public void run() {
+                timerLoop();
+            }
+        }).setName("transport timer").fork();
+    }
+
+    /**
+     * Open a connection to a port on another machine, waiting until the other
+     * end accepts it or stops answering.
+     *
+     * @param    remoteLink    the link address of the other machine.
+     * @param    remotePort    the port to connect to.
+     * @return the new connection, or <tt>null</tt> if it could not be made.
+     */
+    public Connection connect(int remoteLink, int remotePort) {
+        if (remoteLink < 0 || remoteLink >= Packet.linkAddressLimit ||
+                remotePort < 0 || remotePort >= MailMessage.portLimit)
+            return null;
+
+        lock.acquire();
+
+        Port port = findEphemeralPort(remoteLink, remotePort);
+        if (port == null) {
+            lock.release();
+            return null;
+        }
+
+        Connection connection =
+                new Connection(this, port.number, remoteLink, remotePort);
+        port.connections.put(remoteKey(remoteLink, remotePort), connection);
+        connections.add(connection);
+
+        connection.queueSegment(flagSyn, null);
+        connection.pump();
+
+        boolean established = connection.waitForEstablished();
+
+        lock.release();
+
+        return established ? connection : null;
+    }
+
+    /**
+     * Accept a connection made to a local port. The first call for a port
+     * starts listening on it; connections made before that are refused.
+     *
+     * @param    port    the local port.
+     * @param    block    <tt>true</tt> to wait for a connection to arrive.
+     * @return the connection, or <tt>null</tt> if <i>block</i> is
+     * <tt>false</tt> and no connection is waiting.
+     */
+    public Connection accept(int port, boolean block) {
+        if (port < 0 || port >= MailMessage.portLimit)
+            return null;
+
+        lock.acquire();
+
+        Port p = getPort(port);
+        p.listening = true;
+
+        while (block && p.pending.isEmpty())
+            p.connectionPending.sleep();
+
+        Connection connection = p.pending.isEmpty() ? null
+                : p.pending.removeFirst();
+
+        lock.release();
+        return connection;
+    }
+
+    /**
+     * Return the link address of the machine this transport runs on.
+     *
+     * @return the local link address.
+     */
+    public int getLinkAddress() {
+        return localLink;
+    }
+
+    /**
+     * Return the number of segments retransmitted after a timeout.
+     *
+     * @return the number of retransmissions so far.
+     */
+    public int getRetransmits() {
+        return numRetransmits;
+    }
+
+    private Port getPort(int number) {
+        if (ports[number] == null) {
+            final Port port = new Port(number);
+            ports[number] = port;
+
+            new KThread(new Runnable() {
+                public void run() {
+                    receiveLoop(port);
+                }
+            }).setName("transport port " + number).fork();
+        }
+
+        return ports[number];
+    }
+
+    private Port findEphemeralPort(int remoteLink, int remotePort) {
+        for (int i = 0; i < MailMessage.portLimit; i++) {
+            int number = nextEphemeralPort;
+            nextEphemeralPort = (nextEphemeralPort + 1) % MailMessage.portLimit;
+            if (nextEphemeralPort == 0)
+                nextEphemeralPort = firstEphemeralPort;
+
+            if (number < firstEphemeralPort)
+                continue;
+
+            Port port = getPort(number);
+            if (!port.listening && !port.connections.containsKey(
+                    remoteKey(remoteLink, remotePort)))
+                return port;
+        }
+
+        return null;
+    }
+
+    private void receiveLoop(Port port) {
+        while (true) {
+            MailMessage mail = postOffice.receive(port.number);
+            if (mail.contentsLength < headerLength)
+                continue;
+
+            // the segment is parsed in place, and its data left in the packet
+            byte[] packetBytes = mail.packet.packetBytes;
+            int start = MailMessage.contentsOffset;
+            int flags = packetBytes[start];
+            int seq = Lib.bytesToUnsignedShort(packetBytes, start + 1);
+            int ack = Lib.bytesToUnsignedShort(packetBytes, start + 3);
+            int window = packetBytes[start + 5] & 0xFF;
+
+            lock.acquire();
+
+            int key = remoteKey(mail.packet.srcLink, mail.srcPort);
+            Connection connection = port.connections.get(key);
+
+            if (connection == null && flags == flagSyn && port.listening &&
+                    port.pending.size() < maxPending) {
+                connection = new Connection(this, port.number,
+                        mail.packet.srcLink, mail.srcPort);
+                connection.establish(seq);
+                port.connections.put(key, connection);
+                connections.add(connection);
+
+                // our SYN doubles as the acknowledgement of theirs
+                connection.queueSegment(flagSyn, null);
+                connection.pump();
+
+                port.pending.add(connection);
+                port.connectionPending.wake();
+            } else if (connection != null) {
+                connection.handleSegment(flags, seq, ack, window, packetBytes,
+                        start + headerLength, mail.contentsLength - headerLength);
+            } else if ((flags & flagFin) != 0) {
+                // we forgot the connection after our acknowledgement of its
+                // FIN was lost
+                sendRaw(mail.packet.srcLink, mail.srcPort, port.number,
+                        flagAck, 0, (seq + 1) % Connection.seqLimit, 0, null, 0,
+                        0);
+            }
+
+            lock.release();
+        }
+    }
+
+    private void timerLoop() {
+        while (true) {
+            ThreadedKernel.alarm.waitUntil(retransmitTimeout / 2);
+
+            lock.acquire();
+
+            long now = Machine.timer().getTime();
+            for (Connection connection : new ArrayList<Connection>(connections))
+                connection.checkTimeout(now);
+
+            lock.release();
+        }
+    }
+
+    /**
+     * Send a segment of a connection, stamped with the connection's current
+     * acknowledgement and window. Called with the lock held.
+     */
+    void sendSegment(Connection connection, int flags, int seq, byte[] data,
+                     int offset, int length) {
+        sendRaw(connection.getRemoteLink(), connection.getRemotePort(),
+                connection.getLocalPort(), flags, seq, connection.getAckSeq(),
+                connection.advertiseWindow(), data, offset, length);
+    }
+
+    /**
+     * Send a segment, writing the header and copying the data straight into
+     * the packet that carries it.
+     */
+    private void sendRaw(int remoteLink, int remotePort, int localPort,
+                         int flags, int seq, int ack, int window, byte[] data,
+                         int offset, int length) {
+        MailMessage mail;
+
+        try {
+            mail = new MailMessage(remoteLink, remotePort, localLink,
+                    localPort, headerLength + length);
+        } catch (MalformedPacketException e) {
+            Lib.assertNotReached();
+            return;
+        }
+
+        byte[] packetBytes = mail.packet.packetBytes;
+        int start = MailMessage.contentsOffset;
+        packetBytes[start] = (byte) flags;
+        Lib.bytesFromShort(packetBytes, start + 1, (short) seq);
+        Lib.bytesFromShort(packetBytes, start + 3, (short) ack);
+        packetBytes[start + 5] = (byte) window;
+        if (length > 0)
+            System.arraycopy(data, offset, packetBytes, start + headerLength,
+                    length);
+
+        postOffice.send(mail);
+    }
+
+    /**
+     * Called when one end of a connection has closed or the connection has
+     * failed. Forgets the connection once nothing more can happen on it.
+     */
+    void connectionClosed(Connection connection) {
+        if (!connection.isFinished())
+            return;
+
+        Port port = ports[connection.getLocalPort()];
+        int key = remoteKey(connection.getRemoteLink(),
+                connection.getRemotePort());
+        if (port.connections.get(key) == connection)
+            port.connections.remove(key);
+        port.pending.remove(connection);
+        if (connections.remove(connection))
+            retransmitsPerConnection.add(connection.retransmits);
+    }
+
+    /**
+     * Print what this transport has seen: the number of retransmissions, a
+     * histogram of round-trip times in ticks, measured on segments that were
+     * not retransmitted, and a histogram of retransmissions per finished
+     * connection. May be called at any time.
+     */
+    public void printStats() {
+        System.out.println("Transport: connections open " + connections.size()
+                + ", retransmissions " + numRetransmits);
+        System.out.println("  " + roundTripTime);
+        System.out.println("  " + retransmitsPerConnection);
+    }
+
+    private static int remoteKey(int link, int port) {
+        return link * MailMessage.portLimit + port;
+    }
+
+    private class Port {
+        Port(int number) {
+            this.number = number;
+            connectionPending = new Condition2(lock);
+        }
+
+        int number;
+        boolean listening = false;
+        HashMap<Integer, Connection> connections =
+                new HashMap<Integer, Connection>();
+        LinkedList<Connection> pending = new LinkedList<Connection>();
+        Condition2 connectionPending;
+    }
+
+    private PostOffice postOffice;
+    private int localLink;
+
+    private Port[] ports = new Port[MailMessage.portLimit];
+    private LinkedList<Connection> connections = new LinkedList<Connection>();
+    private int nextEphemeralPort = firstEphemeralPort;
+
+    /**
+     * Guards the state of the transport and all of its connections.
+     */
+    final Lock lock;
+    final int windowSize, sendBufferSegments;
+    final int retransmitTimeout, maxRetransmits;
+    /**
+     * The most data a single segment can carry.
+     */
+    final int maxSegmentData;
+
+    int numRetransmits = 0;
+    Histogram roundTripTime = new Histogram("round trip ticks");
+    private Histogram retransmitsPerConnection =
+            new Histogram("retransmissions per connection");
+
+    static final int
+            flagSyn = 0x01,
+            flagAck = 0x02,
+            flagFin = 0x04,
+            flagData = 0x08;
+
+    /**
+     * The number of bytes in a transport header.
+     */
+    public static final int headerLength = 6;
+
+    private static final int maxWindowSize = 255;
+    private static final int maxPending = 16;
+    private static final int firstEphemeralPort = 64;
+}
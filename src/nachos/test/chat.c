@@ -0,0 +1,54 @@
+/* chat.c
+ *	Chat client. Connects to the chat server on the specified host, sends
+ *	each line typed on the console, and prints every line the server
+ *	relays. Type a line holding only "." to leave.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define CHATPORT	15
+#define MAXLINE		256
+
+char buf[MAXLINE];
+
+int main(int argc, char** argv)
+{
+  int fd, amount;
+
+  if (argc != 2) {
+    printf("Usage: chat <host>\n");
+    return 1;
+  }
+
+  fd = connect(atoi(argv[1]), CHATPORT);
+  if (fd == -1) {
+    printf("Unable to connect to host %s\n", argv[1]);
+    return 1;
+  }
+
+  while (1) {
+    /* the console hands out a whole line per read() once one is typed */
+    amount = read(stdin, buf, MAXLINE);
+    if (amount > 0) {
+      if (amount == 2 && buf[0] == '.' && buf[1] == '\n')
+	break;
+      if (write(fd, buf, amount) != amount) {
+	printf("Connection lost\n");
+	return 1;
+      }
+    }
+
+    amount = read(fd, buf, MAXLINE);
+    if (amount == -1) {
+      printf("Server closed the connection\n");
+      return 1;
+    }
+    if (amount > 0)
+      write(stdout, buf, amount);
+  }
+
+  close(fd);
+  return 0;
+}
@@ -0,0 +1,84 @@
+/* chatserver.c
+ *	Chat server. Accepts connections on port 15 and relays every line a
+ *	client sends to all connected clients, the sender included. Runs until
+ *	a key is pressed on the console.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define CHATPORT	15
+#define MAXCLIENTS	16
+#define MAXLINE		256
+
+int clients[MAXCLIENTS];
+char lines[MAXCLIENTS][MAXLINE];
+int lengths[MAXCLIENTS];
+char buf[MAXLINE];
+
+void broadcast(char *line, int length)
+{
+  int i;
+
+  for (i = 0; i < MAXCLIENTS; i++) {
+    if (clients[i] != -1 && write(clients[i], line, length) != length) {
+      close(clients[i]);
+      clients[i] = -1;
+    }
+  }
+}
+
+int main(int argc, char** argv)
+{
+  int i, j, fd, amount;
+
+  for (i = 0; i < MAXCLIENTS; i++)
+    clients[i] = -1;
+
+  printf("Chat server listening on port %d, press enter to stop\n", CHATPORT);
+
+  while (read(stdin, buf, MAXLINE) == 0) {
+    if ((fd = accept(CHATPORT)) != -1) {
+      for (i = 0; i < MAXCLIENTS && clients[i] != -1; i++)
+	;
+      if (i == MAXCLIENTS) {
+	close(fd);
+      }
+      else {
+	clients[i] = fd;
+	lengths[i] = 0;
+      }
+    }
+
+    for (i = 0; i < MAXCLIENTS; i++) {
+      if (clients[i] == -1)
+	continue;
+
+      amount = read(clients[i], buf, MAXLINE);
+      if (amount == -1) {
+	close(clients[i]);
+	clients[i] = -1;
+	continue;
+      }
+
+      for (j = 0; j < amount; j++) {
+	lines[i][lengths[i]++] = buf[j];
+	/* pass on each complete line, or a full buffer */
+	if (buf[j] == '\n' || lengths[i] == MAXLINE) {
+	  broadcast(lines[i], lengths[i]);
+	  lengths[i] = 0;
+	  if (clients[i] == -1)
+	    break;
+	}
+      }
+    }
+  }
+
+  for (i = 0; i < MAXCLIENTS; i++) {
+    if (clients[i] != -1)
+      close(clients[i]);
+  }
+
+  return 0;
+}
@@ -0,0 +1,75 @@
+/* cpbench.c
+ *	Throughput benchmark for the file system calls. Creates a large file,
+ *	copies it with cp.coff and compares the copy with the original.
+ *
+ *	Run with "-d a" to have the kernel report how many ticks cp took and
+ *	how many bytes it moved, e.g.
+ *		nachos -d a -x cpbench.coff
+ *	An optional argument gives the file size in kilobytes (default 256).
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BUFSIZE 1024
+
+char buf[BUFSIZE], buf2[BUFSIZE];
+
+int main(int argc, char** argv)
+{
+  int fd, fd2, i, j, kb, pid, status;
+  char *cpArgs[3];
+
+  kb = (argc > 1) ? atoi(argv[1]) : 256;
+
+  fd = creat("cpbench.in");
+  if (fd == -1) {
+    printf("Unable to create cpbench.in\n");
+    return 1;
+  }
+  for (i = 0; i < BUFSIZE; i++)
+    buf[i] = (char) i;
+  for (i = 0; i < kb; i++) {
+    buf[0] = (char) i;
+    if (write(fd, buf, BUFSIZE) != BUFSIZE) {
+      printf("Write to cpbench.in failed\n");
+      return 1;
+    }
+  }
+  close(fd);
+
+  cpArgs[0] = "cp";
+  cpArgs[1] = "cpbench.in";
+  cpArgs[2] = "cpbench.out";
+  pid = exec("cp.coff", 3, cpArgs);
+  if (pid == -1 || join(pid, &status) != 1 || status != 0) {
+    printf("cp.coff failed\n");
+    return 1;
+  }
+
+  fd = open("cpbench.in");
+  fd2 = open("cpbench.out");
+  for (i = 0; i < kb; i++) {
+    if (read(fd, buf, BUFSIZE) != BUFSIZE ||
+	read(fd2, buf2, BUFSIZE) != BUFSIZE) {
+      printf("Copy is too short\n");
+      return 1;
+    }
+    for (j = 0; j < BUFSIZE; j++) {
+      if (buf[j] != buf2[j]) {
+	printf("Copy differs in kilobyte %d\n", i);
+	return 1;
+      }
+    }
+  }
+  close(fd);
+  close(fd2);
+
+  unlink("cpbench.in");
+  unlink("cpbench.out");
+
+  printf("Copied %d KB\n", kb);
+  halt();
+  return 0;
+}
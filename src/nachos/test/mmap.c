@@ -0,0 +1,47 @@
+/* mmap.c
+ *	Maps a file into memory and rotates every lowercase letter in it by
+ *	13 places (rot13), in place. Running it twice restores the file. The
+ *	pages are read in as they are first touched and written back when the
+ *	file descriptor is closed, or earlier if they are evicted.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* well above the program's own pages */
+#define MAPADDR ((char *) 0x100000)
+
+int main(int argc, char** argv)
+{
+  int fd, length, i;
+  char c;
+
+  if (argc!=2) {
+    printf("Usage: mmap <file>\n");
+    return 1;
+  }
+
+  fd = open(argv[1]);
+  if (fd==-1) {
+    printf("Unable to open %s\n", argv[1]);
+    return 1;
+  }
+
+  length = mmap(fd, MAPADDR);
+  if (length==-1) {
+    printf("Unable to map %s\n", argv[1]);
+    return 1;
+  }
+
+  for (i=0; i<length; i++) {
+    c = MAPADDR[i];
+    if (c>='a' && c<='z')
+      MAPADDR[i] = 'a' + (c - 'a' + 13) % 26;
+  }
+
+  close(fd);
+
+  printf("Rotated %d bytes\n", length);
+  return 0;
+}
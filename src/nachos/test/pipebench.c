@@ -0,0 +1,86 @@
+/* pipebench.c
+ *	Throughput benchmark for pipes. Runs a copy of itself with its
+ *	standard input connected to a pipe, writes a stream of bytes into the
+ *	pipe, and checks that the child received every one of them.
+ *
+ *	Run with "-d a" to have the kernel report the pipe's throughput in
+ *	bytes per tick and bytes per host second, e.g.
+ *		nachos -d a -x pipebench.coff
+ *	An optional argument gives the amount to send in kilobytes (default
+ *	256).
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BUFSIZE 1024
+
+char buf[BUFSIZE];
+
+int sink()
+{
+  int amount, i, total = 0;
+
+  while ((amount = read(fdStandardInput, buf, BUFSIZE)) > 0) {
+    for (i = 0; i < amount; i++) {
+      if (buf[i] != (char) (total + i))
+	return -1;
+    }
+    total += amount;
+  }
+
+  return total / BUFSIZE;
+}
+
+int main(int argc, char** argv)
+{
+  int fds[2], saved, i, j, kb, pid, status, sent;
+  char *sinkArgs[2];
+
+  if (argc > 1 && strcmp(argv[1], "-sink") == 0)
+    return sink();
+
+  kb = (argc > 1) ? atoi(argv[1]) : 256;
+
+  if (pipe(fds) == -1) {
+    printf("pipe failed\n");
+    return 1;
+  }
+
+  saved = dup(fdStandardInput);
+  close(fdStandardInput);
+  dup(fds[0]);
+  sinkArgs[0] = "pipebench";
+  sinkArgs[1] = "-sink";
+  pid = exec("pipebench.coff", 2, sinkArgs);
+  close(fdStandardInput);
+  dup(saved);
+  close(saved);
+  close(fds[0]);
+
+  if (pid == -1) {
+    printf("exec failed\n");
+    return 1;
+  }
+
+  for (i = 0, sent = 0; i < kb; i++) {
+    for (j = 0; j < BUFSIZE; j++)
+      buf[j] = (char) (sent + j);
+    if (write(fds[1], buf, BUFSIZE) != BUFSIZE) {
+      printf("Write to pipe failed\n");
+      return 1;
+    }
+    sent += BUFSIZE;
+  }
+  close(fds[1]);
+
+  if (join(pid, &status) != 1 || status != kb) {
+    printf("Sink received the wrong data\n");
+    return 1;
+  }
+
+  printf("Piped %d KB\n", kb);
+  halt();
+  return 0;
+}
@@ -1,37 +1,59 @@
 #include "stdio.h"
 #include "stdlib.h"
 
+#define CHUNKSIZE	80
+
 void readline(char *s, int maxlength) {
+  char chunk[CHUNKSIZE];
+  char echo[3*CHUNKSIZE];
   int i = 0;
 
   while (1) {
-    char c = getch();
-    /* if end of line, finish up */
-    if (c == '\n') {
-      putchar('\n');
+    /* the console waits for a whole line, and hands it out in one read() */
+    int n = read(stdin, chunk, CHUNKSIZE);
+    int e = 0, j;
+
+    /* end of input: the last line had no newline */
+    if (n <= 0) {
       s[i] = 0;
       return;
     }
-    /* else if backspace... */
-    else if (c == '\b') {
-      /* if nothing to delete, beep */
-      if (i == 0) {
-	beep();
+
+    for (j=0; j<n; j++) {
+      char c = chunk[j];
+      /* if end of line, finish up */
+      if (c == '\n') {
+	echo[e++] = '\n';
+	write(stdout, echo, e);
+	s[i] = 0;
+	return;
+      }
+      /* else if backspace... */
+      else if (c == '\b') {
+	/* if nothing to delete, beep */
+	if (i == 0) {
+	  echo[e++] = 0x07;
+	}
+	/* else delete it */
+	else {
+	  echo[e++] = '\b';
+	  echo[e++] = ' ';
+	  echo[e++] = '\b';
+	  i--;
+	}
       }
-      /* else delete it */
+      /* else if bad character or no room for more, beep */
+      else if (c < 0x20 || i+1 == maxlength) {
+	echo[e++] = 0x07;
+      }
+      /* else add the character */
       else {
-	printf("\b \b");
-	i--;
+	s[i++] = c;
+	echo[e++] = c;
       }
     }
-    /* else if bad character or no room for more, beep */
-    else if (c < 0x20 || i+1 == maxlength) {
-      beep();
-    }
-    /* else add the character */
-    else {
-      s[i++] = c;
-      putchar(c);
-    }
+
+    if (e > 0)
+      write(stdout, echo, e);
   }
 }
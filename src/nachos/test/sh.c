@@ -108,10 +108,89 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
     return numTokens;
 }
 
+static void waitfor(int pid) {
+    int status;
+
+    switch (join(pid, &status)) {
+    case -1:
+	printf("join: Invalid process ID.\n");
+	break;
+    case 0:
+	printf("\n[%d] Unhandled exception\n", pid);
+	break;
+    case 1:
+	printf("\n[%d] Done (%d)\n", pid, status);
+	break;
+    }
+}
+
+static int spawn(int argc, char *argv[]) {
+    char prog[BUFFERSIZE];
+
+    strcpy(prog, argv[0]);
+    strcat(prog, ".coff");
+
+    return exec(prog, argc, argv);
+}
+
+/**
+ * runpipe
+ *
+ * Runs "left | right": the left command's output goes through a pipe to the
+ * right command's input. Children inherit file descriptors 0 and 1, so each
+ * pipe end is moved into place with close() and dup() around its exec().
+ */
+static void runpipe(int argc, char *argv[], int split, int background) {
+    int fds[2], saved, pid1, pid2;
+
+    if (split == 0 || split == argc-1) {
+	printf("Invalid null command.\n");
+	return;
+    }
+
+    if (pipe(fds) == -1) {
+	printf("pipe failed.\n");
+	return;
+    }
+
+    saved = dup(fdStandardOutput);
+    close(fdStandardOutput);
+    dup(fds[1]);
+    pid1 = spawn(split, argv);
+    close(fdStandardOutput);
+    dup(saved);
+    close(saved);
+    close(fds[1]);
+
+    saved = dup(fdStandardInput);
+    close(fdStandardInput);
+    dup(fds[0]);
+    pid2 = spawn(argc-split-1, argv+split+1);
+    close(fdStandardInput);
+    dup(saved);
+    close(saved);
+    close(fds[0]);
+
+    if (pid1 == -1)
+	printf("%s: exec failed.\n", argv[0]);
+    if (pid2 == -1)
+	printf("%s: exec failed.\n", argv[split+1]);
+
+    if (!background) {
+	if (pid1 != -1)
+	    waitfor(pid1);
+	if (pid2 != -1)
+	    waitfor(pid2);
+    }
+    else {
+	printf("\n[%d] [%d]\n", pid1, pid2);
+    }
+}
+
 void runline(char* line) {
-    int pid, background, status;
+    int pid, background, split;
    
-    char args[BUFFERSIZE], prog[BUFFERSIZE];
+    char args[BUFFERSIZE];
     char *argv[MAXARGS];
 
     int argc = tokenizeCommand(line, MAXARGS, argv, args);
@@ -126,6 +205,13 @@ void runline(char* line) {
 	background = 0;
     }
 
+    for (split = 0; split < argc; split++) {
+	if (strcmp(argv[split], "|") == 0) {
+	    runpipe(argc, argv, split, background);
+	    return;
+	}
+    }
+
     if (argc > 0) {
 	if (strcmp(argv[0], "exit")==0) {
 	    if (argc == 1) {
@@ -159,10 +245,7 @@ void runline(char* line) {
 	    }
 	}
 	else {
-	    strcpy(prog, argv[0]);
-	    strcat(prog, ".coff");
-
-	    pid = exec(prog, argc, argv);
+	    pid = spawn(argc, argv);
 	    if (pid == -1) {
 		printf("%s: exec failed.\n", argv[0]);
 		return;
@@ -170,17 +253,7 @@ void runline(char* line) {
 	}
 
 	if (!background) {
-	    switch (join(pid, &status)) {
-	    case -1:
-		printf("join: Invalid process ID.\n");
-		break;
-	    case 0:
-		printf("\n[%d] Unhandled exception\n", pid);
-		break;
-	    case 1:
-		printf("\n[%d] Done (%d)\n", pid, status);
-		break;
-	    }
+	    waitfor(pid);
 	}
 	else {
 	    printf("\n[%d]\n", pid);
@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallPipe		13
+#define syscallDup		14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -71,8 +73,8 @@ void exit(int status);
 /**
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
- * process ID, and starts with stdin opened as file descriptor 0, and stdout
- * opened as file descriptor 1.
+ * process ID, and starts with file descriptors 0 and 1 referring to whatever
+ * the parent's file descriptors 0 and 1 refer to (normally stdin and stdout).
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
@@ -257,6 +259,32 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Create a pipe. The file descriptor of its read end is stored in fds[0], and
+ * that of its write end in fds[1].
+ *
+ * Unlike other streams, a pipe's read end blocks until at least one byte is
+ * available, and returns 0 once every descriptor referring to the write end
+ * has been closed and the pipe is empty. A write blocks until all of its bytes
+ * have been accepted, and returns -1 if the read end has been closed.
+ *
+ * A child created by exec() inherits file descriptors 0 and 1 from its
+ * parent, so a pipe end moved into one of those slots with close() and dup()
+ * is passed on to the next exec().
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/**
+ * Return a new file descriptor, the lowest one not in use, that refers to the
+ * same file or stream as fileDescriptor. Both descriptors share the file
+ * position, and the file is only closed when both have been closed.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fileDescriptor);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
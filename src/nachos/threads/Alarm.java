@@ -19,7 +19,8 @@ public class Alarm {
         pending = new TreeSet<>();
         Machine.timer().setInterruptHandler(() -> {
             boolean origState = Machine.interrupt().disable();
-            if(pending.size() > 0 && pending.first().time <= Machine.timer().getTime()) {
+            // wake every thread that is due, not just the first
+            while(pending.size() > 0 && pending.first().time <= Machine.timer().getTime()) {
                 PendingAlarm pendingAlarm = pending.first();
                 pendingAlarm.getHandler().ready();
                 pending.remove(pendingAlarm);
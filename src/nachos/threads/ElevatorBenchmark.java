@@ -0,0 +1,348 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Random;
+
+/**
+ * Runs a large, headless elevator simulation on <tt>Machine.bank()</tt> and
+ * reports how well each elevator controller handles it. The scenario is
+ * generated from a seed, so every controller sees exactly the same riders.
+ * Since every rider is a Nachos thread, and there can only be
+ * <tt>TCB.maxThreads</tt> of those, the scenario is scaled up by giving each
+ * rider many trips rather than by adding riders. Trips arrive at random, as
+ * if from a Poisson process, and are dealt out to the riders in turn:
+ *
+ * <table>
+ * <tr><td>key</td><td>meaning</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.riders</tt></td><td>number of riders; the
+ * benchmark runs only if this is set</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.floors</tt></td><td>number of
+ * floors</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.elevators</tt></td><td>number of
+ * elevators</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.stops</tt></td><td>number of trips each
+ * rider makes</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.arrivalInterval</tt></td><td>mean ticks
+ * between trips arriving</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.seed</tt></td><td>seed for the
+ * scenario</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.controllers</tt></td><td>comma-separated
+ * class names of the controllers to compare</td></tr>
+ * </table>
+ *
+ * <p>
+ * For each controller the benchmark prints the simulated and host
+ * throughput in trips, the number of events the controller and riders
+ * handled per host second, and histograms of how long riders waited for an
+ * elevator and how long they rode in it, in ticks.
+ */
+public class ElevatorBenchmark {
+    /**
+     * Allocate a new elevator benchmark, reading its scenario from
+     * <tt>nachos.conf</tt>.
+     */
+    public ElevatorBenchmark() {
+        numRiders = Config.getInteger("ElevatorBenchmark.riders", 0);
+        numFloors = Config.getInteger("ElevatorBenchmark.floors", 20);
+        numElevators = Config.getInteger("ElevatorBenchmark.elevators", 4);
+        numStops = Config.getInteger("ElevatorBenchmark.stops", 1);
+        arrivalInterval =
+                Config.getInteger("ElevatorBenchmark.arrivalInterval", 2000);
+        seed = Config.getInteger("ElevatorBenchmark.seed", 0);
+        controllers = Config.getString("ElevatorBenchmark.controllers",
+                "nachos.threads.SweepElevatorController").split(",");
+
+        Lib.assertTrue(numFloors >= 2 && numElevators > 0 && numStops > 0);
+        Lib.assertTrue(arrivalInterval >= 0);
+        Lib.assertTrue(numRiders + 2 * numElevators + 10 <= TCB.maxThreads,
+                "too many elevator benchmark riders for the Nachos threads");
+    }
+
+    /**
+     * Run the scenario once for each controller.
+     */
+    public void run() {
+        for (String controller : controllers)
+            run(controller.trim());
+    }
+
+    private void run(String controllerName) {
+        ElevatorControllerInterface controller =
+                (ElevatorControllerInterface) Lib.constructObject(controllerName);
+        CountingController counter = new CountingController(controller);
+
+        waitTime = new Histogram("wait ticks");
+        travelTime = new Histogram("travel ticks");
+        numRiderEvents = 0;
+
+        Machine.bank().init(numElevators, numFloors, counter);
+
+        // the same seed gives every controller the same riders
+        Random random = new Random(seed);
+        long startTime = Machine.timer().getTime();
+
+        long[][] arrivals = new long[numRiders][numStops];
+        long arrival = startTime;
+        for (int j = 0; j < numStops; j++) {
+            for (int i = 0; i < numRiders; i++) {
+                arrival += (long) (-arrivalInterval
+                        * Math.log(1 - random.nextDouble()));
+                arrivals[i][j] = arrival;
+            }
+        }
+
+        for (int i = 0; i < numRiders; i++) {
+            int floor = random.nextInt(numFloors);
+            int[] stops = new int[numStops];
+            int previous = floor;
+            for (int j = 0; j < numStops; j++) {
+                // never a stop on the floor the rider is already on
+                stops[j] = random.nextInt(numFloors - 1);
+                if (stops[j] >= previous)
+                    stops[j]++;
+                previous = stops[j];
+            }
+
+            Machine.bank().addRider(new BenchmarkRider(arrivals[i]), floor,
+                    stops);
+        }
+
+        long startHostTime = System.nanoTime();
+
+        Machine.bank().run();
+
+        long ticks = Machine.timer().getTime() - startTime;
+        double seconds = Math.max(System.nanoTime() - startHostTime, 1) / 1e9;
+        long trips = travelTime.getCount();
+        long events = numRiderEvents + counter.numEvents;
+
+        System.out.println("elevator benchmark: " + controllerName + ", "
+                + numFloors + " floors, " + numElevators + " elevators, "
+                + numRiders + " riders of " + numStops + " trips");
+        System.out.println("  " + trips + " trips in " + ticks + " ticks ("
+                + String.format("%.3f", trips * 1000.0 / Math.max(ticks, 1))
+                + " trips/1000 ticks), "
+                + String.format("%.0f", seconds * 1000) + " ms ("
+                + String.format("%.0f", trips / seconds) + " trips/s), "
+                + events + " events ("
+                + String.format("%.0f", events / seconds) + " events/s)");
+        System.out.println("  " + waitTime);
+        System.out.println("  " + travelTime);
+    }
+
+    /**
+     * A rider that makes each trip at a set time, or as soon as it finishes
+     * the trip before if that is later. For each trip it presses the call
+     * button, boards the first elevator going its way, and gets off at the
+     * stop. Its wait is counted from when the trip was due. It presses a
+     * button again whenever the doors it was waiting on close without it, so
+     * it copes with full elevators and with riding past its stop.
+     */
+    private class BenchmarkRider implements RiderInterface {
+        BenchmarkRider(long[] arrivals) {
+            this.arrivals = arrivals;
+        }
+
+        public void initialize(RiderControls controls, int[] stops) {
+            this.controls = controls;
+            this.stops = stops;
+
+            open = new boolean[controls.getNumElevators()];
+            eventWait = new Semaphore(0);
+
+            controls.setInterruptHandler(new Runnable() {
+                public void run() {
+                    eventWait.V();
+                }
+            });
+        }
+
+        public void run() {
+            for (int j = 0; j < stops.length; j++) {
+                long delay = arrivals[j] - Machine.timer().getTime();
+                if (delay > 0)
+                    ThreadedKernel.alarm.waitUntil(delay);
+
+                board(stops[j]);
+                long boarded = Machine.timer().getTime();
+                ride(stops[j]);
+
+                waitTime.add(boarded - arrivals[j]);
+                travelTime.add(Machine.timer().getTime() - boarded);
+            }
+
+            controls.finish();
+            Lib.assertNotReached();
+        }
+
+        private void board(int stop) {
+            int floor = controls.getFloor();
+            int direction = (stop > floor) ? dirUp : dirDown;
+            boolean press = true;
+
+            while (true) {
+                RiderEvent e;
+                while ((e = nextEvent()) != null) {
+                    if (e.floor != floor)
+                        continue;
+
+                    if (e.event == RiderEvent.eventDoorsClosed) {
+                        open[e.elevator] = false;
+                        press = true;
+                    } else {
+                        open[e.elevator] = true;
+                    }
+                }
+
+                for (int i = 0; i < open.length; i++) {
+                    if (open[i] && controls.getDirectionDisplay(i) == direction
+                            && controls.enterElevator(i)) {
+                        elevator = i;
+                        return;
+                    }
+                }
+
+                if (press) {
+                    press = false;
+                    controls.pressDirectionButton(direction == dirUp);
+                }
+
+                eventWait.P();
+            }
+        }
+
+        private void ride(int stop) {
+            boolean press = true;
+
+            while (true) {
+                RiderEvent e;
+                while ((e = nextEvent()) != null) {
+                    if (e.floor != stop || e.elevator != elevator)
+                        continue;
+
+                    if (e.event == RiderEvent.eventDoorsClosed)
+                        press = true;
+                    else if (e.event == RiderEvent.eventDoorsOpened &&
+                            exit(stop))
+                        return;
+                }
+
+                // the button is refused if the doors are open at the stop
+                if (press) {
+                    press = false;
+                    if (!controls.pressFloorButton(stop) && exit(stop))
+                        return;
+                }
+
+                eventWait.P();
+            }
+        }
+
+        private boolean exit(int stop) {
+            if (!controls.exitElevator(stop))
+                return false;
+
+            // what we knew about this floor's doors is out of date
+            for (int i = 0; i < open.length; i++)
+                open[i] = false;
+            open[elevator] = true;
+
+            return true;
+        }
+
+        private RiderEvent nextEvent() {
+            RiderEvent e = controls.getNextEvent();
+            if (e != null)
+                numRiderEvents++;
+
+            return e;
+        }
+
+        private long[] arrivals;
+        private RiderControls controls;
+        private int[] stops;
+        private int elevator;
+        private boolean[] open;
+        private Semaphore eventWait;
+    }
+
+    /**
+     * Passes a controller its controls, counting the events it takes from
+     * them.
+     */
+    private static class CountingController
+            implements ElevatorControllerInterface, ElevatorControls {
+        CountingController(ElevatorControllerInterface controller) {
+            this.controller = controller;
+        }
+
+        public void initialize(ElevatorControls controls) {
+            this.controls = controls;
+            controller.initialize(this);
+        }
+
+        public void run() {
+            controller.run();
+        }
+
+        public int getNumFloors() {
+            return controls.getNumFloors();
+        }
+
+        public int getNumElevators() {
+            return controls.getNumElevators();
+        }
+
+        public void setInterruptHandler(Runnable handler) {
+            controls.setInterruptHandler(handler);
+        }
+
+        public void openDoors(int elevator) {
+            controls.openDoors(elevator);
+        }
+
+        public void closeDoors(int elevator) {
+            controls.closeDoors(elevator);
+        }
+
+        public boolean moveTo(int floor, int elevator) {
+            return controls.moveTo(floor, elevator);
+        }
+
+        public int getFloor(int elevator) {
+            return controls.getFloor(elevator);
+        }
+
+        public void setDirectionDisplay(int elevator, int direction) {
+            controls.setDirectionDisplay(elevator, direction);
+        }
+
+        public void finish() {
+            controls.finish();
+        }
+
+        public ElevatorEvent getNextEvent() {
+            ElevatorEvent e = controls.getNextEvent();
+            if (e != null)
+                numEvents++;
+
+            return e;
+        }
+
+        private ElevatorControllerInterface controller;
+        private ElevatorControls controls;
+        long numEvents = 0;
+    }
+
+    private int numRiders, numFloors, numElevators, numStops;
+    private int arrivalInterval, seed;
+    private String[] controllers;
+
+    private Histogram waitTime, travelTime;
+    private long numRiderEvents;
+
+    private static final int
+            dirDown = RiderInterface.dirDown,
+            dirUp = RiderInterface.dirUp;
+}
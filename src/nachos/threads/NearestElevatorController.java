@@ -0,0 +1,65 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A sweep elevator controller that gives each call button to one elevator:
+ * the nearest one that is idle or already heading toward the call, or else
+ * the nearest one of all. The other elevators ignore the call, so they do
+ * not chase riders another elevator will pick up.
+ */
+public class NearestElevatorController extends SweepElevatorController {
+    /**
+     * Allocate a new nearest elevator controller.
+     */
+    public NearestElevatorController() {
+    }
+
+    public void initialize(ElevatorControls controls) {
+        super.initialize(controls);
+
+        assignedUp = new int[numFloors];
+        assignedDown = new int[numFloors];
+    }
+
+    protected void hallCallPressed(int floor, int direction) {
+        int best = 0;
+        int bestCost = Integer.MAX_VALUE;
+        for (int elevator = 0; elevator < numElevators; elevator++) {
+            int cost = cost(elevator, floor);
+            if (cost < bestCost) {
+                best = elevator;
+                bestCost = cost;
+            }
+        }
+
+        if (direction == dirUp)
+            assignedUp[floor] = best;
+        else
+            assignedDown[floor] = best;
+    }
+
+    protected boolean claims(int elevator, int floor, int direction) {
+        int assigned = (direction == dirUp) ? assignedUp[floor]
+                : assignedDown[floor];
+        return assigned == elevator;
+    }
+
+    /**
+     * Estimate how far an elevator must travel before it can answer a call:
+     * the distance, plus a full trip up and down the building if it is
+     * heading away.
+     */
+    private int cost(int elevator, int floor) {
+        int at = controls.getFloor(elevator);
+        int direction = getDirection(elevator);
+        int distance = Math.abs(floor - at);
+
+        if (direction == dirNeither || (floor - at) * direction >= 0)
+            return distance;
+        else
+            return distance + 2 * numFloors;
+    }
+
+    private int[] assignedUp, assignedDown;
+}
@@ -0,0 +1,268 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * An elevator controller in which every elevator sweeps up and down the
+ * building, stopping at each floor ahead of it with a rider waiting to go its
+ * way or wanting to get off, and turning around only when nothing is left
+ * ahead of it. Every elevator answers every call button, so on a busy floor
+ * several may race to the same call; the first to open its doors takes it.
+ *
+ * <p>
+ * Subclasses can share the calls out between elevators by overriding
+ * <tt>hallCallPressed()</tt> and <tt>claims()</tt>.
+ */
+public class SweepElevatorController implements ElevatorControllerInterface {
+    /**
+     * Allocate a new sweep elevator controller.
+     */
+    public SweepElevatorController() {
+    }
+
+    /**
+     * Initialize this elevator controller, with every elevator idle where it
+     * stands.
+     *
+     * @param    controls    the controller's interface to the elevator
+     * bank.
+     */
+    public void initialize(ElevatorControls controls) {
+        this.controls = controls;
+
+        numFloors = controls.getNumFloors();
+        numElevators = controls.getNumElevators();
+
+        upCalls = new boolean[numFloors];
+        downCalls = new boolean[numFloors];
+        carCalls = new boolean[numElevators][numFloors];
+
+        cars = new Car[numElevators];
+        for (int i = 0; i < numElevators; i++)
+            cars[i] = new Car(controls.getFloor(i));
+
+        wake = new Semaphore(0);
+
+        controls.setInterruptHandler(new Runnable() {
+            public void run() {
+                wake.V();
+            }
+        });
+    }
+
+    /**
+     * Handle events until the riders are done, moving each elevator after
+     * every batch of events and whenever an elevator's doors have been open
+     * long enough.
+     */
+    public void run() {
+        while (true) {
+            ElevatorEvent e;
+            while ((e = controls.getNextEvent()) != null) {
+                if (e.event == ElevatorEvent.eventRidersDone)
+                    controls.finish();
+
+                handleEvent(e);
+            }
+
+            for (int i = 0; i < numElevators; i++)
+                step(i);
+
+            wake.P();
+        }
+    }
+
+    private void handleEvent(ElevatorEvent e) {
+        switch (e.event) {
+            case ElevatorEvent.eventUpButtonPressed:
+                upCalls[e.floor] = true;
+                hallCallPressed(e.floor, dirUp);
+                break;
+            case ElevatorEvent.eventDownButtonPressed:
+                downCalls[e.floor] = true;
+                hallCallPressed(e.floor, dirDown);
+                break;
+            case ElevatorEvent.eventFloorButtonPressed:
+                carCalls[e.elevator][e.floor] = true;
+                break;
+            case ElevatorEvent.eventElevatorArrived:
+                cars[e.elevator].floor = e.floor;
+                cars[e.elevator].state = stateStopped;
+                break;
+        }
+    }
+
+    /**
+     * Called when a call button is pressed on a floor.
+     *
+     * @param    floor    the floor.
+     * @param    direction    the direction the rider wants to go.
+     */
+    protected void hallCallPressed(int floor, int direction) {
+    }
+
+    /**
+     * Tell whether an elevator should answer a call button. Every elevator
+     * answers every call.
+     *
+     * @param    elevator    the elevator.
+     * @param    floor    the floor the call was made on.
+     * @param    direction    the direction the rider wants to go.
+     * @return <tt>true</tt> if the elevator should answer the call.
+     */
+    protected boolean claims(int elevator, int floor, int direction) {
+        return true;
+    }
+
+    /**
+     * Return the direction an elevator is sweeping in.
+     *
+     * @param    elevator    the elevator.
+     * @return <tt>dirUp</tt>, <tt>dirDown</tt>, or <tt>dirNeither</tt> if
+     * the elevator is idle.
+     */
+    protected int getDirection(int elevator) {
+        return cars[elevator].direction;
+    }
+
+    /**
+     * Decide what an elevator does next, if it is not already busy.
+     */
+    private void step(int elevator) {
+        Car car = cars[elevator];
+
+        if (car.state == stateMoving)
+            return;
+
+        if (car.state == stateOpen) {
+            if (Machine.timer().getTime() < car.closeTime)
+                return;
+
+            controls.closeDoors(elevator);
+            car.state = stateStopped;
+        }
+
+        int floor = car.floor;
+        int direction = car.direction;
+
+        // a sweep ends when nothing is left ahead
+        if (direction != dirNeither && !callHere(elevator, floor, direction) &&
+                !callsAhead(elevator, floor, direction))
+            direction = dirNeither;
+
+        if (direction == dirNeither)
+            direction = chooseDirection(elevator, floor);
+
+        car.direction = direction;
+        if (direction == dirNeither) {
+            controls.setDirectionDisplay(elevator, dirNeither);
+            return;
+        }
+
+        // with nothing ahead, riders here going the other way come first
+        if (!hallCall(elevator, floor, direction) &&
+                !callsAhead(elevator, floor, direction) &&
+                hallCall(elevator, floor, -direction))
+            car.direction = direction = -direction;
+
+        if (callHere(elevator, floor, direction)) {
+            carCalls[elevator][floor] = false;
+            if (direction == dirUp)
+                upCalls[floor] = false;
+            else
+                downCalls[floor] = false;
+
+            controls.setDirectionDisplay(elevator, direction);
+            controls.openDoors(elevator);
+            car.state = stateOpen;
+            car.closeTime = Machine.timer().getTime() + timeDoorsOpen;
+
+            // wake up when the doors have been open long enough
+            new KThread(new Runnable() {
+                public void run() {
+                    ThreadedKernel.alarm.waitUntil(timeDoorsOpen);
+                    wake.V();
+                }
+            }).setName("door timer").fork();
+        } else {
+            controls.setDirectionDisplay(elevator, direction);
+            Lib.assertTrue(controls.moveTo(floor + direction, elevator));
+            car.state = stateMoving;
+        }
+    }
+
+    /**
+     * Pick a direction for an idle elevator: the way a rider on its floor
+     * wants to go, or else toward the nearest floor it has reason to visit.
+     */
+    private int chooseDirection(int elevator, int floor) {
+        if (carCalls[elevator][floor] || hallCall(elevator, floor, dirUp))
+            return dirUp;
+        if (hallCall(elevator, floor, dirDown))
+            return dirDown;
+
+        for (int distance = 1; distance < numFloors; distance++) {
+            if (floor + distance < numFloors &&
+                    anyCall(elevator, floor + distance))
+                return dirUp;
+            if (floor - distance >= 0 && anyCall(elevator, floor - distance))
+                return dirDown;
+        }
+
+        return dirNeither;
+    }
+
+    private boolean callHere(int elevator, int floor, int direction) {
+        return carCalls[elevator][floor] || hallCall(elevator, floor, direction);
+    }
+
+    private boolean callsAhead(int elevator, int floor, int direction) {
+        for (int f = floor + direction; f >= 0 && f < numFloors; f += direction) {
+            if (anyCall(elevator, f))
+                return true;
+        }
+
+        return false;
+    }
+
+    private boolean anyCall(int elevator, int floor) {
+        return carCalls[elevator][floor] || hallCall(elevator, floor, dirUp) ||
+                hallCall(elevator, floor, dirDown);
+    }
+
+    private boolean hallCall(int elevator, int floor, int direction) {
+        boolean pressed = (direction == dirUp) ? upCalls[floor]
+                : downCalls[floor];
+        return pressed && claims(elevator, floor, direction);
+    }
+
+    private class Car {
+        Car(int floor) {
+            this.floor = floor;
+        }
+
+        int floor;
+        int direction = dirNeither;
+        int state = stateStopped;
+        long closeTime;
+    }
+
+    /**
+     * The controller's interface to the elevator bank.
+     */
+    protected ElevatorControls controls;
+    /**
+     * The number of floors and elevators in the bank.
+     */
+    protected int numFloors, numElevators;
+
+    private boolean[] upCalls, downCalls;
+    private boolean[][] carCalls;
+    private Car[] cars;
+    private Semaphore wake;
+
+    private static final int
+            stateStopped = 0,
+            stateMoving = 1,
+            stateOpen = 2;
+}
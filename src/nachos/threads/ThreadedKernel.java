@@ -41,9 +41,10 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes, and run the
+     * elevator benchmark if <tt>ElevatorBenchmark.riders</tt> is set. Note
+     * that the autograder never calls this method, so it is safe to put
+     * additional tests here.
      */
     public void selfTest() {
         KThread.selfTest();
@@ -54,6 +55,9 @@ public class ThreadedKernel extends Kernel {
         Communicator.selfTest();
         if (Machine.bank() != null) {
             ElevatorBank.selfTest();
+
+            if (Config.getInteger("ElevatorBenchmark.riders", 0) > 0)
+                new ElevatorBenchmark().run();
         }
     }
 
@@ -65,9 +69,14 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Never returns. File data that the stub file
+     * system has not yet written to the host is written first, since the
+     * files still open are never closed.
      */
     public void terminate() {
+        if (fileSystem instanceof StubFileSystem)
+            ((StubFileSystem) fileSystem).sync();
+
         Machine.halt();
     }
 
@@ -0,0 +1,215 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A kernel pipe: a bounded buffer that carries bytes from a write end to a
+ * read end. Both ends are <tt>OpenFile</tt> objects, so a process can use
+ * them through ordinary file descriptors.
+ *
+ * <p>
+ * A read blocks until at least one byte is available, and returns 0 once the
+ * write end is closed and the buffer is empty. A write blocks until all of
+ * its bytes have been accepted, and fails once the read end is closed. When a
+ * reader is already waiting on an empty pipe, a write copies straight into the
+ * reader's buffer instead of going through the pipe's own.
+ */
+public class Pipe {
+    /**
+     * Allocate a new pipe.
+     */
+    public Pipe() {
+        id = ++numPipesCreated;
+        startTime = Machine.timer().getTime();
+        startHostTime = System.nanoTime();
+
+        readEnd = new End(false);
+        writeEnd = new End(true);
+    }
+
+    /**
+     * Return the end of this pipe that can be read from.
+     *
+     * @return the read end of this pipe.
+     */
+    public OpenFile getReadEnd() {
+        return readEnd;
+    }
+
+    /**
+     * Return the end of this pipe that can be written to.
+     *
+     * @return the write end of this pipe.
+     */
+    public OpenFile getWriteEnd() {
+        return writeEnd;
+    }
+
+    private int read(byte[] buf, int offset, int length) {
+        if (length == 0)
+            return 0;
+
+        readLock.acquire();
+        lock.acquire();
+
+        int amount = 0;
+        if (count == 0 && writerOpen) {
+            // let the next writer copy straight into our buffer
+            pendingBuffer = buf;
+            pendingOffset = offset;
+            pendingLength = length;
+            pendingAmount = 0;
+
+            while (pendingAmount == 0 && count == 0 && writerOpen)
+                dataAvailable.sleep();
+
+            amount = pendingAmount;
+            pendingBuffer = null;
+        }
+
+        if (amount == 0) {
+            amount = Math.min(length, count);
+            for (int copied = 0; copied < amount; ) {
+                int chunk = Math.min(amount - copied, buffer.length - head);
+                System.arraycopy(buffer, head, buf, offset + copied, chunk);
+                head = (head + chunk) % buffer.length;
+                copied += chunk;
+            }
+            count -= amount;
+
+            if (amount > 0)
+                spaceAvailable.wake();
+        }
+
+        bytesTransferred += amount;
+
+        lock.release();
+        readLock.release();
+        return amount;
+    }
+
+    private int write(byte[] buf, int offset, int length) {
+        writeLock.acquire();
+        lock.acquire();
+
+        int written = 0;
+        while (written < length && readerOpen) {
+            if (pendingBuffer != null && pendingAmount == 0 && count == 0) {
+                int amount = Math.min(length - written, pendingLength);
+                System.arraycopy(buf, offset + written, pendingBuffer,
+                        pendingOffset, amount);
+                pendingAmount = amount;
+                written += amount;
+
+                dataAvailable.wake();
+            } else if (count == buffer.length) {
+                spaceAvailable.sleep();
+            } else {
+                int tail = (head + count) % buffer.length;
+                int amount = Math.min(length - written, Math.min(
+                        buffer.length - count, buffer.length - tail));
+                System.arraycopy(buf, offset + written, buffer, tail, amount);
+                count += amount;
+                written += amount;
+
+                dataAvailable.wake();
+            }
+        }
+
+        lock.release();
+        writeLock.release();
+
+        if (written == 0 && length > 0)
+            return -1;
+        return written;
+    }
+
+    private void close(boolean writing) {
+        lock.acquire();
+
+        if (writing) {
+            writerOpen = false;
+            dataAvailable.wakeAll();
+        } else {
+            readerOpen = false;
+            spaceAvailable.wakeAll();
+        }
+
+        if (!readerOpen && !writerOpen && bytesTransferred > 0)
+            printThroughput();
+
+        lock.release();
+    }
+
+    private void printThroughput() {
+        long ticks = Machine.timer().getTime() - startTime;
+        long nanos = System.nanoTime() - startHostTime;
+
+        Lib.debug(dbgProcess, "pipe " + id + ": " + bytesTransferred
+                + " bytes in " + ticks + " ticks ("
+                + String.format("%.2f", (double) bytesTransferred
+                / Math.max(ticks, 1))
+                + " bytes/tick, "
+                + String.format("%.0f", bytesTransferred * 1e9
+                / Math.max(nanos, 1))
+                + " bytes/s)");
+    }
+
+    private class End extends OpenFile {
+        End(boolean writing) {
+            super(null, writing ? "pipe" + id + ".w" : "pipe" + id + ".r");
+
+            this.writing = writing;
+        }
+
+        public int read(byte[] buf, int offset, int length) {
+            if (writing || closed)
+                return -1;
+
+            return Pipe.this.read(buf, offset, length);
+        }
+
+        public int write(byte[] buf, int offset, int length) {
+            if (!writing || closed)
+                return -1;
+
+            return Pipe.this.write(buf, offset, length);
+        }
+
+        public void close() {
+            if (closed)
+                return;
+
+            closed = true;
+            Pipe.this.close(writing);
+        }
+
+        private boolean writing;
+        private boolean closed = false;
+    }
+
+    private static final int pipeSize = 4096;
+    private byte[] buffer = new byte[pipeSize];
+    private int head = 0, count = 0;
+    private boolean readerOpen = true, writerOpen = true;
+
+    private byte[] pendingBuffer = null;
+    private int pendingOffset, pendingLength, pendingAmount;
+
+    private Lock lock = new Lock();
+    private Lock readLock = new Lock();
+    private Lock writeLock = new Lock();
+    private Condition2 dataAvailable = new Condition2(lock);
+    private Condition2 spaceAvailable = new Condition2(lock);
+
+    private final int id;
+    private final long startTime, startHostTime;
+    private long bytesTransferred = 0;
+
+    private OpenFile readEnd, writeEnd;
+
+    private static int numPipesCreated = 0;
+
+    private static final char dbgProcess = 'a';
+}
@@ -28,61 +28,215 @@ public class SynchConsole {
             }
         };
         console.setInterruptHandlers(receiveHandler, sendHandler);
+
+        perByteTiming = Config.getBoolean("SynchConsole.perByteTiming", false);
     }
 
     /**
      * Return the next unsigned byte received (in the range <tt>0</tt> through
      * <tt>255</tt>). If a byte has not arrived at, blocks until a byte
      * arrives, or returns immediately, depending on the value of <i>block</i>.
+     * Never blocks once the input has ended.
      *
      * @param block <tt>true</tt> if <tt>readByte()</tt> should wait for a
      *              byte if none is available.
-     * @return the next byte read, or -1 if <tt>block</tt> was <tt>false</tt>
-     * and no byte was available.
+     * @return the next byte read, or -1 if no byte was available and
+     * <tt>block</tt> was <tt>false</tt> or the input has ended.
      */
     public int readByte(boolean block) {
         int value;
-        boolean intStatus = Machine.interrupt().disable();
         readLock.acquire();
+        boolean intStatus = Machine.interrupt().disable();
 
-        if (block || charAvailable) {
-            charAvailable = false;
+        while (block && inputCount == 0 && !console.atEndOfInput()) {
+            readerWaiting = true;
             readWait.P();
+        }
 
-            value = console.readByte();
-            Lib.assertTrue(value != -1);
+        if (inputCount > 0) {
+            value = inputBuffer[inputHead] & 0xFF;
+            consumeInput(1);
         } else {
             value = -1;
         }
 
-        readLock.release();
         Machine.interrupt().restore(intStatus);
+        readLock.release();
         return value;
     }
 
+    /**
+     * Read up to <i>length</i> bytes of complete lines into <i>buf</i>. A
+     * read returns at most one line, including its newline; bytes of a line
+     * that is still being typed are held back unless the input buffer is
+     * full. At the end of input, a last line with no newline is returned as
+     * it is, and after that every read returns 0.
+     *
+     * @param buf    the buffer to store the bytes in.
+     * @param offset the offset in the buffer to start storing bytes.
+     * @param length the maximum number of bytes to read.
+     * @param block  <tt>true</tt> to wait until a whole line has been typed,
+     *               or the input has ended.
+     * @return the number of bytes read.
+     */
+    public int read(byte[] buf, int offset, int length, boolean block) {
+        readLock.acquire();
+        boolean intStatus = Machine.interrupt().disable();
+
+        while (block && length > 0 && !lineReady()) {
+            readerWaiting = true;
+            readWait.P();
+        }
+
+        int available = 0;
+        if (inputLines > 0) {
+            while (inputBuffer[(inputHead + available) % inputBuffer.length]
+                    != '\n')
+                available++;
+            available++;
+        } else if (lineReady()) {
+            // a full buffer, or the end of input
+            available = inputCount;
+        }
+
+        int amount = Math.min(length, available);
+        for (int i = 0; i < amount; i++)
+            buf[offset + i] = inputBuffer[(inputHead + i) % inputBuffer.length];
+        consumeInput(amount);
+
+        Machine.interrupt().restore(intStatus);
+        readLock.release();
+        return amount;
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to read this as a file.
+     * Its reads block until a whole line has been typed.
      *
      * @return a file that can read this console.
      */
     public OpenFile openForReading() {
-        return new File(true, false);
+        return openForReading(true);
+    }
+
+    /**
+     * Return an <tt>OpenFile</tt> that can be used to read this as a file.
+     *
+     * @param block <tt>true</tt> if its reads should wait for a whole line,
+     *              <tt>false</tt> if they should return 0 instead.
+     * @return a file that can read this console.
+     */
+    public OpenFile openForReading(boolean block) {
+        return new File(true, false, block);
+    }
+
+    private boolean lineReady() {
+        return inputLines > 0 || inputCount == inputBuffer.length ||
+                console.atEndOfInput();
+    }
+
+    private void consumeInput(int amount) {
+        for (int i = 0; i < amount; i++) {
+            if (inputBuffer[inputHead] == '\n')
+                inputLines--;
+            inputHead = (inputHead + 1) % inputBuffer.length;
+        }
+        inputCount -= amount;
+
+        // the console holds back its next bytes until we make room
+        fillInput();
+    }
+
+    private void fillInput() {
+        while (inputCount < inputBuffer.length) {
+            int tail = (inputHead + inputCount) % inputBuffer.length;
+            int amount = console.readBytes(inputBuffer, tail, Math.min(
+                    inputBuffer.length - inputCount,
+                    inputBuffer.length - tail));
+            if (amount == 0)
+                break;
+
+            for (int i = tail; i < tail + amount; i++) {
+                if (inputBuffer[i] == '\n')
+                    inputLines++;
+            }
+            inputCount += amount;
+        }
     }
 
     private void receiveInterrupt() {
-        charAvailable = true;
-        readWait.V();
+        fillInput();
+
+        if (readerWaiting && (inputCount > 0 || console.atEndOfInput())) {
+            readerWaiting = false;
+            readWait.V();
+        }
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Send a byte. The byte is queued in the output buffer, so this only
+     * blocks if the buffer is full.
      *
      * @param value the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
+        write(new byte[]{(byte) value}, 0, 1);
+    }
+
+    /**
+     * Send <i>length</i> bytes from <i>buf</i>. The bytes are copied into the
+     * output buffer, which is drained by the send interrupt handler; this
+     * only blocks while the output buffer is full. Unless
+     * <tt>SynchConsole.perByteTiming</tt> is set, each send hands the console
+     * everything contiguous in the buffer, so a long write costs a handful of
+     * interrupts instead of one per byte.
+     *
+     * @param buf    the buffer containing the bytes to send.
+     * @param offset the offset of the first byte to send.
+     * @param length the number of bytes to send.
+     */
+    public void write(byte[] buf, int offset, int length) {
+        writeLock.acquire();
+        boolean intStatus = Machine.interrupt().disable();
+
+        while (length > 0) {
+            if (outputCount == outputBuffer.length) {
+                writerWaiting = true;
+                writeWait.P();
+                continue;
+            }
+
+            int tail = (outputHead + outputCount) % outputBuffer.length;
+            int amount = Math.min(length, Math.min(
+                    outputBuffer.length - outputCount,
+                    outputBuffer.length - tail));
+
+            System.arraycopy(buf, offset, outputBuffer, tail, amount);
+            outputCount += amount;
+            offset += amount;
+            length -= amount;
+
+            if (!sending)
+                startSend();
+        }
+
+        Machine.interrupt().restore(intStatus);
+        writeLock.release();
+    }
+
+    /**
+     * Wait until every byte queued by <tt>write()</tt> has been sent.
+     */
+    public void drain() {
         writeLock.acquire();
-        console.writeByte(value);
-        writeWait.P();
+        boolean intStatus = Machine.interrupt().disable();
+
+        while (sending) {
+            writerWaiting = true;
+            writeWait.P();
+        }
+
+        Machine.interrupt().restore(intStatus);
         writeLock.release();
     }
 
@@ -92,14 +246,36 @@ public class SynchConsole {
      * @return a file that can write this console.
      */
     public OpenFile openForWriting() {
-        return new File(false, true);
+        return new File(false, true, false);
     }
 
-    private void sendInterrupt() {
-        writeWait.V();
+    private void startSend() {
+        if (outputCount == 0) {
+            sending = false;
+            return;
+        }
+
+        int amount = perByteTiming ? 1 :
+                Math.min(outputCount, outputBuffer.length - outputHead);
+
+        if (amount == 1)
+            console.writeByte(outputBuffer[outputHead]);
+        else
+            console.writeBytes(outputBuffer, outputHead, amount);
+
+        outputHead = (outputHead + amount) % outputBuffer.length;
+        outputCount -= amount;
+        sending = true;
     }
 
-    private boolean charAvailable = false;
+    private void sendInterrupt() {
+        startSend();
+
+        if (writerWaiting) {
+            writerWaiting = false;
+            writeWait.V();
+        }
+    }
 
     private SerialConsole console;
     private Lock readLock = new Lock();
@@ -107,12 +283,24 @@ public class SynchConsole {
     private Semaphore readWait = new Semaphore(0);
     private Semaphore writeWait = new Semaphore(0);
 
+    private static final int inputBufferSize = 1024;
+    private byte[] inputBuffer = new byte[inputBufferSize];
+    private int inputHead = 0, inputCount = 0, inputLines = 0;
+    private boolean readerWaiting = false;
+
+    private boolean perByteTiming;
+    private static final int outputBufferSize = 4096;
+    private byte[] outputBuffer = new byte[outputBufferSize];
+    private int outputHead = 0, outputCount = 0;
+    private boolean sending = false, writerWaiting = false;
+
     private class File extends OpenFile {
-        File(boolean canRead, boolean canWrite) {
+        File(boolean canRead, boolean canWrite, boolean block) {
             super(null, "SynchConsole");
 
             this.canRead = canRead;
             this.canWrite = canWrite;
+            this.block = block;
         }
 
         public void close() {
@@ -123,28 +311,18 @@ public class SynchConsole {
             if (!canRead)
                 return 0;
 
-            int i;
-            for (i = 0; i < length; i++) {
-                int value = SynchConsole.this.readByte(false);
-                if (value == -1)
-                    break;
-
-                buf[offset + i] = (byte) value;
-            }
-
-            return i;
+            return SynchConsole.this.read(buf, offset, length, block);
         }
 
         public int write(byte[] buf, int offset, int length) {
             if (!canWrite)
                 return 0;
 
-            for (int i = 0; i < length; i++)
-                SynchConsole.this.writeByte(buf[offset + i]);
+            SynchConsole.this.write(buf, offset, length);
 
             return length;
         }
 
-        private boolean canRead, canWrite;
+        private boolean canRead, canWrite, block;
     }
 }
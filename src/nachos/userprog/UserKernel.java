@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 
 /**
@@ -36,9 +38,17 @@ public class UserKernel extends ThreadedKernel {
         int numPhysPages = Machine.processor().getNumPhysPages();
         freePagesLock = new Lock();
         freePagesLock.acquire();
+        pageRefCounts = new int[numPhysPages];
+        sharedPageKeys = new String[numPhysPages];
         for (int i = 0; i < numPhysPages; i++) {
             freePages.add(i);
         }
+
+        // the zero page keeps one reference forever, so it is never written
+        zeroPage = freePages.removeFirst();
+        pageRefCounts[zeroPage] = 1;
+        Arrays.fill(Machine.processor().getMemory(), zeroPage * Processor.pageSize,
+                (zeroPage + 1) * Processor.pageSize, (byte) 0);
         freePagesLock.release();
     }
 
@@ -51,10 +61,13 @@ public class UserKernel extends ThreadedKernel {
         System.out.println("Testing the console device. Typed characters");
         System.out.println("will be echoed until q is typed.");
 
-        char c;
+        int c;
 
         do {
-            c = (char) console.readByte(true);
+            // the input may end before a q arrives
+            c = console.readByte(true);
+            if (c == -1)
+                break;
             console.writeByte(c);
         }
         while (c != 'q');
@@ -114,27 +127,181 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Never returns. Output still queued for the
+     * console is sent first.
      */
     public void terminate() {
+        console.drain();
+
+        System.out.println("Exec: loads " + numExecs
+                + ", average " + (numExecs == 0 ? 0 : execTicks / numExecs)
+                + " ticks, executable cache hits " + Coff.getCacheHits()
+                + ", misses " + Coff.getCacheMisses());
+
         super.terminate();
     }
 
+    /**
+     * Account for a successful exec that spent the specified number of ticks
+     * loading its executable.
+     *
+     * @param ticks the ticks spent in <tt>UserProcess.load()</tt>.
+     */
+    static void recordExec(long ticks) {
+        numExecs++;
+        execTicks += ticks;
+    }
+
+    /**
+     * Allocate the specified number of free physical pages. Each page starts
+     * with a reference count of one.
+     *
+     * @param numPages the number of pages to allocate.
+     * @return the physical page numbers, or <tt>null</tt> if there are not
+     * enough free pages.
+     */
     public static ArrayList<Integer> acquirePages(int numPages) {
-        Lib.assertTrue(numPages <= Machine.processor().getNumPhysPages());
         ArrayList<Integer> ret = new ArrayList<>();
         freePagesLock.acquire();
-        for (int i = 0; i < numPages; i++) {
-            ret.add(freePages.removeFirst());
+        if (freePages.size() >= numPages) {
+            for (int i = 0; i < numPages; i++) {
+                int ppn = freePages.removeFirst();
+                pageRefCounts[ppn] = 1;
+                ret.add(ppn);
+            }
+        } else {
+            ret = null;
         }
         freePagesLock.release();
         return ret;
     }
 
+    /**
+     * Allocate a single free physical page, with a reference count of one.
+     *
+     * @return the physical page number, or -1 if no page is free.
+     */
+    public static int acquirePage() {
+        ArrayList<Integer> pages = acquirePages(1);
+        return pages == null ? -1 : pages.get(0);
+    }
+
+    /**
+     * Drop one reference to each of the specified physical pages.
+     *
+     * @param pages the physical page numbers to release.
+     */
     public static void returnPages(ArrayList<Integer> pages) {
+        for (int ppn : pages)
+            releasePage(ppn);
+    }
+
+    /**
+     * Drop one reference to a physical page. When the last reference goes
+     * away the page is removed from the shared page cache and freed.
+     *
+     * @param ppn the physical page number.
+     */
+    public static void releasePage(int ppn) {
+        freePagesLock.acquire();
+        Lib.assertTrue(pageRefCounts[ppn] > 0);
+        if (--pageRefCounts[ppn] == 0) {
+            if (sharedPageKeys[ppn] != null) {
+                sharedPages.remove(sharedPageKeys[ppn]);
+                sharedPageKeys[ppn] = null;
+            }
+            freePages.add(ppn);
+        }
+        freePagesLock.release();
+    }
+
+    /**
+     * Look up a page in the shared page cache and take a reference to it.
+     * Shared pages hold data that is identical for every process mapping them,
+     * such as the read-only sections of an executable, and must never be
+     * written while they are in the cache.
+     *
+     * @param key identifies the contents of the page.
+     * @return the physical page number, or -1 if no page with this key is
+     * cached.
+     */
+    public static int acquireSharedPage(String key) {
+        freePagesLock.acquire();
+        Integer ppn = sharedPages.get(key);
+        if (ppn != null)
+            pageRefCounts[ppn]++;
+        freePagesLock.release();
+        return ppn == null ? -1 : ppn;
+    }
+
+    /**
+     * Take a reference to the shared zero page, a physical page that is
+     * always filled with zeros. It must only be mapped read-only, so that
+     * the first write to it gets a private copy from
+     * <tt>privatizePage()</tt>.
+     *
+     * @return the physical page number of the zero page.
+     */
+    public static int acquireZeroPage() {
         freePagesLock.acquire();
-        freePages.addAll(pages);
+        pageRefCounts[zeroPage]++;
         freePagesLock.release();
+        return zeroPage;
+    }
+
+    /**
+     * Add a page, already loaded and referenced by the caller, to the shared
+     * page cache so that later calls to <tt>acquireSharedPage()</tt> with the
+     * same key can map it.
+     *
+     * @param key identifies the contents of the page.
+     * @param ppn the physical page number.
+     */
+    public static void publishSharedPage(String key, int ppn) {
+        freePagesLock.acquire();
+        Lib.assertTrue(pageRefCounts[ppn] > 0 && sharedPageKeys[ppn] == null);
+        if (!sharedPages.containsKey(key)) {
+            sharedPages.put(key, ppn);
+            sharedPageKeys[ppn] = key;
+        }
+        freePagesLock.release();
+    }
+
+    /**
+     * Give the caller a private, writable copy of a physical page it holds a
+     * reference to. If the caller holds the only reference the page itself is
+     * removed from the shared page cache and returned. Otherwise a new page
+     * is allocated, the contents are copied, and the caller's reference to the
+     * old page is dropped.
+     *
+     * @param ppn the physical page number.
+     * @return the private page number, or -1 if no page is free.
+     */
+    public static int privatizePage(int ppn) {
+        freePagesLock.acquire();
+        Lib.assertTrue(pageRefCounts[ppn] > 0);
+
+        int copy;
+        if (pageRefCounts[ppn] == 1) {
+            if (sharedPageKeys[ppn] != null) {
+                sharedPages.remove(sharedPageKeys[ppn]);
+                sharedPageKeys[ppn] = null;
+            }
+            copy = ppn;
+        } else if (!freePages.isEmpty()) {
+            copy = freePages.removeFirst();
+            pageRefCounts[copy] = 1;
+            pageRefCounts[ppn]--;
+
+            byte[] memory = Machine.processor().getMemory();
+            System.arraycopy(memory, ppn * Processor.pageSize,
+                    memory, copy * Processor.pageSize, Processor.pageSize);
+        } else {
+            copy = -1;
+        }
+
+        freePagesLock.release();
+        return copy;
     }
 
     /**
@@ -145,6 +312,13 @@ public class UserKernel extends ThreadedKernel {
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 
+    private static int numExecs = 0;
+    private static long execTicks = 0;
+
     private static Lock freePagesLock;  // you will get null pointer exception if you new Lock() before initialize()
     private static final LinkedList<Integer> freePages = new LinkedList<>();
+    private static int zeroPage;
+    private static int[] pageRefCounts;
+    private static String[] sharedPageKeys;
+    private static final HashMap<String, Integer> sharedPages = new HashMap<>();
 }
@@ -6,6 +6,7 @@ import nachos.threads.*;
 import java.io.EOFException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -27,6 +28,19 @@ public class UserProcess {
         boolean intStatus = Machine.interrupt().disable();
         pid = ++processCount;
         Machine.interrupt().restore(intStatus);
+
+        installFile(openConsoleInput());
+        installFile(UserKernel.console.openForWriting());
+    }
+
+    /**
+     * Return the file this process reads as standard input. Its reads wait
+     * for a whole line to be typed.
+     *
+     * @return the console, open for reading.
+     */
+    protected OpenFile openConsoleInput() {
+        return UserKernel.console.openForReading(true);
     }
 
     /**
@@ -49,9 +63,13 @@ public class UserProcess {
      * @return <tt>true</tt> if the program was successfully executed.
      */
     public boolean execute(String name, String[] args) {
+        long loadStart = Machine.timer().getTime();
         if (!load(name, args))
             return false;
 
+        startTime = Machine.timer().getTime();
+        UserKernel.recordExec(startTime - loadStart);
+
         thread = new UThread(this).setName(name);
         thread.fork();
 
@@ -134,15 +152,13 @@ public class UserProcess {
 
         byte[] memory = Machine.processor().getMemory();
 
-        if (vaddr < 0 || vaddr >= memory.length)
-            return 0;
-
-
         int amount = 0;
-        for (int i = Processor.pageFromAddress(vaddr); i <= Processor.pageFromAddress(vaddr + length - 1); ++i) {
-            if (vaddr + amount >= numPages * pageSize) break;
-            int toRead = Math.min(length - amount, Processor.makeAddress(i, 0) + Processor.pageSize - vaddr);
-            System.arraycopy(memory, virtualToPhysical(vaddr + amount), data, offset + amount, toRead);
+        while (amount < length) {
+            int ppn = translatePage(Processor.pageFromAddress(vaddr + amount), false);
+            if (ppn == -1) break;
+            int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+            int toRead = Math.min(length - amount, pageSize - pageOffset);
+            System.arraycopy(memory, ppn * pageSize + pageOffset, data, offset + amount, toRead);
             amount += toRead;
         }
 
@@ -182,21 +198,97 @@ public class UserProcess {
 
         byte[] memory = Machine.processor().getMemory();
 
-        if (vaddr < 0 || vaddr >= memory.length)
-            return 0;
-
-
         int amount = 0;
-        for (int i = Processor.pageFromAddress(vaddr); i <= Processor.pageFromAddress(vaddr + length - 1); ++i) {
-            if (vaddr + amount >= numPages * pageSize) break;
-            int toWrite = Math.min(length - amount, Processor.makeAddress(i, 0) + Processor.pageSize - vaddr);
-            System.arraycopy(data, offset + amount, memory, virtualToPhysical(vaddr + amount), toWrite);
+        while (amount < length) {
+            int ppn = translatePage(Processor.pageFromAddress(vaddr + amount), true);
+            if (ppn == -1) break;
+            int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+            int toWrite = Math.min(length - amount, pageSize - pageOffset);
+            System.arraycopy(data, offset + amount, memory, ppn * pageSize + pageOffset, toWrite);
             amount += toWrite;
         }
 
         return amount;
     }
 
+    /**
+     * Translate a range of this process's virtual memory into the pieces of
+     * <tt>Processor.getMemory()</tt> backing it, so that the caller can copy
+     * straight between guest memory and a file or device. Virtual pages that
+     * happen to be physically contiguous are merged into one segment. Like
+     * <tt>readVirtualMemory()</tt>, this stops at the first page that cannot
+     * be accessed, so the segments may cover only a prefix of the range.
+     *
+     * <p>
+     * Only this process changes its own mappings: a physical page it uses is
+     * freed or reused only through its own translations, faults,
+     * <tt>mmap()</tt> and <tt>close()</tt> calls and exit, never by another
+     * process and never while it is blocked. The segments therefore stay
+     * valid across blocking calls, such as file, pipe and socket I/O, until
+     * this process next translates or maps memory. A system call may use them
+     * for the rest of the call, as long as it does not translate more memory
+     * first.
+     *
+     * @param vaddr   the first byte of virtual memory in the range.
+     * @param length  the number of bytes in the range.
+     * @param writing <tt>true</tt> if the caller will store into the range;
+     *                copy-on-write pages are then made private first.
+     * @return the segments backing the accessible prefix of the range.
+     */
+    public ArrayList<MemorySegment> getMemorySegments(int vaddr, int length,
+                                                      boolean writing) {
+        Lib.assertTrue(length >= 0);
+
+        ArrayList<MemorySegment> segments = new ArrayList<>();
+
+        int amount = 0;
+        int start = -1, end = -1;
+        while (amount < length) {
+            int ppn = translatePage(Processor.pageFromAddress(vaddr + amount), writing);
+            if (ppn == -1) break;
+            int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+            int toCopy = Math.min(length - amount, pageSize - pageOffset);
+            int paddr = ppn * pageSize + pageOffset;
+
+            if (paddr != end) {
+                if (start != -1)
+                    segments.add(new MemorySegment(start, end - start));
+                start = paddr;
+            }
+            end = paddr + toCopy;
+            amount += toCopy;
+        }
+        if (start != -1)
+            segments.add(new MemorySegment(start, end - start));
+
+        return segments;
+    }
+
+    /**
+     * Find the physical page backing a virtual page, preparing it for the
+     * specified kind of access, and mark it used (and dirty when writing).
+     * Subclasses that do not keep every page resident can override this to
+     * fault the page in.
+     *
+     * @param vpn     the virtual page number.
+     * @param writing <tt>true</tt> if the page will be written.
+     * @return the physical page number, or -1 if the page cannot be accessed.
+     */
+    protected int translatePage(int vpn, boolean writing) {
+        if (vpn < 0 || vpn >= numPages || !pageTable[vpn].valid)
+            return -1;
+
+        TranslationEntry entry = pageTable[vpn];
+        if (writing && entry.readOnly &&
+                !(copyOnWrite[vpn] && breakCopyOnWrite(vpn)))
+            return -1;
+
+        entry.used = true;
+        if (writing)
+            entry.dirty = true;
+        return entry.ppn;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -216,6 +308,9 @@ public class UserProcess {
             return false;
         }
 
+        executableKey = executable.getName() + "#" + executable.length()
+                + "#" + executable.lastModified();
+
         try {
             coff = new Coff(executable);
         } catch (EOFException e) {
@@ -294,18 +389,17 @@ public class UserProcess {
      * @return <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-        if (numPages > Machine.processor().getNumPhysPages()) {
-            coff.close();
-            Lib.debug(dbgProcess, "\tinsufficient physical memory");
-            return false;
-        }
-
-        physicalPagesAcquired = UserKernel.acquirePages(numPages);
         pageTable = new TranslationEntry[numPages];
+        copyOnWrite = new boolean[numPages];
         for (int i = 0; i < numPages; i++)
-            pageTable[i] = new TranslationEntry(i, physicalPagesAcquired.get(i), true, false, false, false);
+            pageTable[i] = new TranslationEntry(i, 0, false, false, false, false);
+
+        // map sections, collecting the pages that must be loaded
+        int[] loadSections = new int[numPages];
+        int[] loadSPNs = new int[numPages];
+        int[] loadPPNs = new int[numPages];
+        int numToLoad = 0;
 
-        // load sections
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
 
@@ -314,12 +408,117 @@ public class UserProcess {
 
             for (int i = 0; i < section.getLength(); i++) {
                 int vpn = section.getFirstVPN() + i;
-                pageTable[vpn].readOnly = section.isReadOnly();
-                int ppn = pageTable[vpn].ppn;
-                section.loadPage(i, ppn);
+                int ppn = mapSectionPage(s, i, vpn);
+                if (ppn == -1) {
+                    unloadSections();
+                    coff.close();
+                    Lib.debug(dbgProcess, "\tinsufficient physical memory");
+                    return false;
+                }
+
+                if (ppn != mappedShared) {
+                    loadSections[numToLoad] = s;
+                    loadSPNs[numToLoad] = i;
+                    loadPPNs[numToLoad] = ppn;
+                    numToLoad++;
+                }
             }
         }
 
+        // load them all together, then let other processes share them
+        coff.loadPages(loadSections, loadSPNs, loadPPNs, numToLoad);
+        for (int i = 0; i < numToLoad; i++) {
+            UserKernel.publishSharedPage(executableKey + ":" + loadSections[i]
+                    + ":" + loadSPNs[i], loadPPNs[i]);
+        }
+
+        // the stack starts out as zero pages; the argument page is private
+        for (int vpn = numPages - stackPages - 1; vpn < numPages - 1; vpn++)
+            mapZeroPage(vpn);
+
+        int argPage = UserKernel.acquirePage();
+        if (argPage == -1) {
+            unloadSections();
+            coff.close();
+            Lib.debug(dbgProcess, "\tinsufficient physical memory");
+            return false;
+        }
+        pageTable[numPages - 1].ppn = argPage;
+        pageTable[numPages - 1].valid = true;
+
+        return true;
+    }
+
+    /**
+     * Map a page of a COFF section. Initialized pages start out identical in
+     * every instance of the executable, so they are shared through
+     * <tt>UserKernel.acquireSharedPage()</tt> and loaded from the file only if
+     * no other process has them; writable ones are mapped copy-on-write.
+     * Uninitialized pages map the zero page.
+     *
+     * @param s   the section number.
+     * @param spn the page number within the section.
+     * @param vpn the virtual page to map.
+     * @return the physical page that the caller must load the page into,
+     * <tt>mappedShared</tt> if the page needs no loading, or -1 if no
+     * physical page was available.
+     */
+    private int mapSectionPage(int s, int spn, int vpn) {
+        CoffSection section = coff.getSection(s);
+        if (!section.isInitialzed()) {
+            mapZeroPage(vpn);
+            return mappedShared;
+        }
+
+        int ppn = UserKernel.acquireSharedPage(executableKey + ":" + s + ":"
+                + spn);
+        int result = mappedShared;
+        if (ppn == -1) {
+            ppn = UserKernel.acquirePage();
+            if (ppn == -1)
+                return -1;
+
+            result = ppn;
+        }
+
+        TranslationEntry entry = pageTable[vpn];
+        entry.ppn = ppn;
+        entry.valid = true;
+        entry.readOnly = true;
+        copyOnWrite[vpn] = !section.isReadOnly();
+        return result;
+    }
+
+    /**
+     * Map a virtual page to the shared zero page. The page gets a private
+     * frame only when it is first written.
+     *
+     * @param vpn the virtual page to map.
+     */
+    private void mapZeroPage(int vpn) {
+        TranslationEntry entry = pageTable[vpn];
+        entry.ppn = UserKernel.acquireZeroPage();
+        entry.valid = true;
+        entry.readOnly = true;
+        copyOnWrite[vpn] = true;
+    }
+
+    /**
+     * Give this process a private, writable copy of a copy-on-write page.
+     *
+     * @param vpn the virtual page to copy.
+     * @return <tt>true</tt> if a physical page was available for the copy.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+        Lib.assertTrue(copyOnWrite[vpn]);
+
+        int ppn = UserKernel.privatizePage(pageTable[vpn].ppn);
+        if (ppn == -1)
+            return false;
+
+        pageTable[vpn].ppn = ppn;
+        pageTable[vpn].readOnly = false;
+        copyOnWrite[vpn] = false;
         return true;
     }
 
@@ -327,8 +526,15 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-        UserKernel.returnPages(physicalPagesAcquired);
-        physicalPagesAcquired.clear();
+        if (pageTable == null)
+            return;
+
+        for (TranslationEntry entry : pageTable) {
+            if (entry.valid) {
+                UserKernel.releasePage(entry.ppn);
+                entry.valid = false;
+            }
+        }
     }
 
     /**
@@ -359,37 +565,218 @@ public class UserProcess {
      */
     private int handleHalt() {
         if (pid != 1) return -1;
-        Machine.halt();
+        Kernel.kernel.terminate();
 
-        Lib.assertNotReached("Machine.halt() did not halt machine!");
+        Lib.assertNotReached("Kernel.terminate() did not halt machine!");
         return 0;
     }
 
+    /**
+     * Handle the creat() and open() system calls.
+     */
+    private int handleOpen(int name, boolean create) {
+        String fileName = readVirtualMemoryString(name, maxFileNameLength);
+        if (fileName == null) return -1;
+
+        if (freeFileDescriptors() < 1) return -1;
+
+        OpenFile file = ThreadedKernel.fileSystem.open(fileName, create);
+        if (file == null) return -1;
+
+        return installFile(file);
+    }
+
+    /**
+     * Handle the read() system call. Data is read from the file straight into
+     * the physical pages backing the buffer, one call per contiguous segment.
+     * The buffer is translated a piece at a time if <tt>getMemorySegments()</tt>
+     * cannot hand out all of it at once, and each piece is used up before the
+     * next is translated; if it runs into a page that cannot be accessed,
+     * what was read before that page is returned.
+     */
+    private int handleRead(int fd, int buffer, int count) {
+        OpenFile file = getOpenFile(fd);
+        if (file == null || count < 0) return -1;
+
+        byte[] memory = Machine.processor().getMemory();
+        int readByte = 0;
+        while (readByte < count) {
+            ArrayList<MemorySegment> segments =
+                    getMemorySegments(buffer + readByte, count - readByte, true);
+            if (segments.isEmpty()) break;
+
+            for (MemorySegment segment : segments) {
+                int amount = file.read(memory, segment.offset, segment.length);
+                if (amount == -1) return readByte == 0 ? -1 : readByte;
+                readByte += amount;
+                if (amount < segment.length) {
+                    bytesRead += readByte;
+                    return readByte;
+                }
+            }
+        }
+        if (readByte == 0 && count > 0) return -1;
+        bytesRead += readByte;
+        return readByte;
+    }
+
+    /**
+     * Handle the write() system call. Data is written to the file straight
+     * from the physical pages backing the buffer, one call per contiguous
+     * segment, a piece of the buffer at a time like <tt>read()</tt>.
+     */
     private int handleWrite(int fd, int buffer, int count) {
-        if (fd != 1) return -1;
-        if (buffer < 0 || count < 0) return -1;
-        OpenFile openFile = UserKernel.console.openForWriting();
+        OpenFile file = getOpenFile(fd);
+        if (file == null || count < 0) return -1;
+
+        byte[] memory = Machine.processor().getMemory();
         int writtenByte = 0;
         while (writtenByte < count) {
-            int bufSize = 1 << 10, bytesToRead = Math.min(bufSize, count - writtenByte);
-            byte[] outputBuffer = new byte[bufSize];
-            int readByte = readVirtualMemory(buffer + writtenByte, outputBuffer, 0, bytesToRead);
-            if (readByte != bytesToRead) return -1;
-            Lib.assertTrue(openFile.write(outputBuffer, 0, readByte) != -1);
-            writtenByte += readByte;
+            ArrayList<MemorySegment> segments =
+                    getMemorySegments(buffer + writtenByte, count - writtenByte, false);
+            if (segments.isEmpty()) break;
+
+            for (MemorySegment segment : segments) {
+                int amount = file.write(memory, segment.offset, segment.length);
+                if (amount == -1) return writtenByte == 0 ? -1 : writtenByte;
+                writtenByte += amount;
+                if (amount < segment.length) {
+                    bytesWritten += writtenByte;
+                    return writtenByte;
+                }
+            }
         }
-        openFile.close();
+        if (writtenByte == 0 && count > 0) return -1;
+        bytesWritten += writtenByte;
         return writtenByte;
     }
 
-    private int handleRead(int fd, int buffer, int count) {
-        if (!(fd == 0 && count == 1)) return -1;
-        if (buffer < 0) return -1;
-        OpenFile openFile = UserKernel.console.openForReading();
-        byte[] b = new byte[1];
-        openFile.read(b, 0, 1);
-        openFile.close();
-        return writeVirtualMemory(buffer, b) == 1 ? 1 : -1;
+    /**
+     * Handle the close() system call.
+     */
+    private int handleClose(int fd) {
+        if (getOpenFile(fd) == null) return -1;
+
+        releaseFile(fd);
+        return 0;
+    }
+
+    /**
+     * Handle the pipe() system call. The read end goes in <tt>fds[0]</tt>
+     * and the write end in <tt>fds[1]</tt>.
+     */
+    private int handlePipe(int fds) {
+        if (freeFileDescriptors() < 2) return -1;
+
+        Pipe pipe = new Pipe();
+        int readFd = installFile(pipe.getReadEnd());
+        int writeFd = installFile(pipe.getWriteEnd());
+
+        byte[] buf = new byte[8];
+        Lib.bytesFromInt(buf, 0, readFd);
+        Lib.bytesFromInt(buf, 4, writeFd);
+        if (writeVirtualMemory(fds, buf) != buf.length) {
+            releaseFile(readFd);
+            releaseFile(writeFd);
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Handle the dup() system call. The new descriptor is the lowest free
+     * one, and shares the file (and its position) with <i>fd</i>.
+     */
+    private int handleDup(int fd) {
+        OpenFile file = getOpenFile(fd);
+        if (file == null || freeFileDescriptors() < 1) return -1;
+
+        return installFile(file);
+    }
+
+    /**
+     * Handle the unlink() system call.
+     */
+    private int handleUnlink(int name) {
+        String fileName = readVirtualMemoryString(name, maxFileNameLength);
+        if (fileName == null) return -1;
+
+        return ThreadedKernel.fileSystem.remove(fileName) ? 0 : -1;
+    }
+
+    /**
+     * Return the file open on the specified file descriptor.
+     *
+     * @param fd the file descriptor.
+     * @return the open file, or <tt>null</tt> if <i>fd</i> is not in use.
+     */
+    protected OpenFile getOpenFile(int fd) {
+        if (fd < 0 || fd >= maxOpenFiles) return null;
+        return fileTable[fd];
+    }
+
+    /**
+     * Return the number of file descriptors not in use.
+     *
+     * @return the number of free file descriptors.
+     */
+    protected int freeFileDescriptors() {
+        int free = 0;
+        for (OpenFile file : fileTable)
+            if (file == null) free++;
+        return free;
+    }
+
+    /**
+     * Put <i>file</i> in the lowest free slot of the file table. A file can
+     * be installed in several slots, and in several processes; it is only
+     * closed when the last of them releases it.
+     */
+    protected int installFile(OpenFile file) {
+        int fd = 0;
+        while (fd < maxOpenFiles && fileTable[fd] != null) fd++;
+        if (fd == maxOpenFiles) return -1;
+
+        installFileAt(fd, file);
+        return fd;
+    }
+
+    /**
+     * Put <i>file</i> in the specified slot of the file table, which must be
+     * free.
+     */
+    protected void installFileAt(int fd, OpenFile file) {
+        Lib.assertTrue(fileTable[fd] == null);
+
+        fileTable[fd] = file;
+
+        boolean intStatus = Machine.interrupt().disable();
+        Integer references = fileReferences.get(file);
+        fileReferences.put(file, references == null ? 1 : references + 1);
+        Machine.interrupt().restore(intStatus);
+    }
+
+    private void releaseFile(int fd) {
+        OpenFile file = fileTable[fd];
+        fileTable[fd] = null;
+
+        boolean intStatus = Machine.interrupt().disable();
+        int references = fileReferences.get(file) - 1;
+        if (references == 0)
+            fileReferences.remove(file);
+        else
+            fileReferences.put(file, references);
+        Machine.interrupt().restore(intStatus);
+
+        if (references == 0)
+            file.close();
+    }
+
+    private void releaseFiles() {
+        for (int fd = 0; fd < maxOpenFiles; fd++) {
+            if (fileTable[fd] != null)
+                releaseFile(fd);
+        }
     }
 
     private int handleExec(int file, int argc, int argv) {
@@ -408,8 +795,22 @@ public class UserProcess {
         }
         UserProcess child = newUserProcess();
         child.parent = this;
+
+        // the child inherits our standard input and output, so that a shell
+        // can point them at a pipe with close() and dup(); a slot we have
+        // closed stays closed in the child
+        for (int fd : new int[]{fdStandardInput, fdStandardOutput}) {
+            child.releaseFile(fd);
+            if (fileTable[fd] != null)
+                child.installFileAt(fd, fileTable[fd]);
+        }
+
+        if (!child.execute(fileName, args)) {
+            child.releaseFiles();
+            return -1;
+        }
         pidToChild.put(child.pid, child);
-        return child.execute(fileName, args) ? child.pid : -1;
+        return child.pid;
     }
 
     private int handleJoin(int processID, int status) {
@@ -423,8 +824,21 @@ public class UserProcess {
         return 1;
     }
 
-    private int handleExit(int status) {
+    /**
+     * Handle the exit() system call. Also used to kill a process that has
+     * run into an error it cannot recover from.
+     *
+     * @param status the exit status.
+     */
+    protected int handleExit(int status) {
+        Lib.debug(dbgProcess, "process " + pid + " exited with status " + status
+                + " after " + (Machine.timer().getTime() - startTime) + " ticks, "
+                + bytesRead + " bytes read, " + bytesWritten + " bytes written");
+
         unloadSections();
+        coff.close();
+
+        releaseFiles();
 
         boolean intStatus = Machine.interrupt().disable();
         if (parent != null) parent.childStatus = status;
@@ -452,7 +866,9 @@ public class UserProcess {
             syscallRead = 6,
             syscallWrite = 7,
             syscallClose = 8,
-            syscallUnlink = 9;
+            syscallUnlink = 9,
+            syscallPipe = 13,
+            syscallDup = 14;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -473,6 +889,8 @@ public class UserProcess {
      * 								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  pipe(int *fds);</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  dup(int fd);</tt></td></tr>
      * </table>
      *
      * @param syscall the syscall number.
@@ -492,10 +910,22 @@ public class UserProcess {
                 return handleExec(a0, a1, a2);
             case syscallJoin:
                 return handleJoin(a0, a1);
+            case syscallCreate:
+                return handleOpen(a0, true);
+            case syscallOpen:
+                return handleOpen(a0, false);
             case syscallRead:
                 return handleRead(a0, a1, a2);
             case syscallWrite:
                 return handleWrite(a0, a1, a2);
+            case syscallClose:
+                return handleClose(a0);
+            case syscallUnlink:
+                return handleUnlink(a0);
+            case syscallPipe:
+                return handlePipe(a0);
+            case syscallDup:
+                return handleDup(a0);
             default:
                 Lib.debug(dbgProcess, "Unknown syscall " + syscall);
                 Lib.assertNotReached("Unknown system call!");
@@ -526,6 +956,10 @@ public class UserProcess {
                 processor.advancePC();
                 break;
 
+            case Processor.exceptionReadOnly:
+                handleReadOnly(processor.readRegister(Processor.regBadVAddr));
+                break;
+
             default:
                 Lib.debug(dbgProcess, "Unexpected exception: " +
                         Processor.exceptionNames[cause]);
@@ -533,8 +967,46 @@ public class UserProcess {
         }
     }
 
-    private int virtualToPhysical(int vaddr) {
-        return Processor.makeAddress(pageTable[Processor.pageFromAddress(vaddr)].ppn, Processor.offsetFromAddress(vaddr));
+    /**
+     * Handle a write to a read-only page. Writes to copy-on-write pages get a
+     * private copy of the page and are restarted; anything else is an error.
+     *
+     * @param vaddr the virtual address that was written.
+     */
+    private void handleReadOnly(int vaddr) {
+        int vpn = Processor.pageFromAddress(vaddr);
+        if (vpn >= numPages || !copyOnWrite[vpn]) {
+            Lib.debug(dbgProcess, "Unexpected exception: " +
+                    Processor.exceptionNames[Processor.exceptionReadOnly]);
+            Lib.assertNotReached("Unexpected exception");
+        }
+
+        if (!breakCopyOnWrite(vpn)) {
+            Lib.debug(dbgProcess, "\tout of physical memory");
+            handleExit(-1);
+        }
+    }
+
+    /**
+     * A contiguous piece of physical memory backing part of a range of
+     * virtual memory.
+     *
+     * @see #getMemorySegments
+     */
+    public static class MemorySegment {
+        MemorySegment(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * The offset of this segment in <tt>Processor.getMemory()</tt>.
+         */
+        public final int offset;
+        /**
+         * The number of bytes in this segment.
+         */
+        public final int length;
     }
 
     /**
@@ -546,6 +1018,11 @@ public class UserProcess {
      * This process's page table.
      */
     protected TranslationEntry[] pageTable;
+    /**
+     * Which pages of the page table are mapped read-only only until their
+     * first write, at which point they get a private copy.
+     */
+    protected boolean[] copyOnWrite;
     /**
      * The number of contiguous pages occupied by the program.
      */
@@ -556,6 +1033,11 @@ public class UserProcess {
      */
     protected final int stackPages = 8;
 
+    /**
+     * This process's unique identifier.
+     */
+    protected final int pid;
+
     private int initialPC, initialSP;
     private int argc, argv;
 
@@ -564,8 +1046,18 @@ public class UserProcess {
 
     private KThread thread;
     private static int processCount = 0, exitedProcessCount = 0;
-    private final int pid;
-    private ArrayList<Integer> physicalPagesAcquired;
+    private String executableKey;
+
+    private static final int mappedShared = -2;
+
+    private static final int maxOpenFiles = 16;
+    private static final int maxFileNameLength = 256;
+    private static final int fdStandardInput = 0, fdStandardOutput = 1;
+    private final OpenFile[] fileTable = new OpenFile[maxOpenFiles];
+    private static final IdentityHashMap<OpenFile, Integer> fileReferences =
+            new IdentityHashMap<>();
+    private long startTime;
+    private long bytesRead = 0, bytesWritten = 0;
     private UserProcess parent = null;
     HashMap<Integer, UserProcess> pidToChild = new HashMap<>();
     private Integer childStatus = null;
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -21,6 +23,13 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
         super.initialize(args);
+
+        taggedTLB = Config.getBoolean("VMKernel.taggedTLB", true);
+
+        int tlbSize = Machine.processor().getTLBSize();
+        tlbTags = new int[tlbSize];
+        for (int i = 0; i < tlbSize; i++)
+            tlbTags[i] = noOwner;
     }
 
     /**
@@ -41,9 +50,141 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        System.out.println("TLB: context switches " + numTLBSwitches
+                + ", misses " + numTLBMisses
+                + ", misses/switch " + String.format("%.2f", numTLBSwitches == 0
+                ? 0.0 : (double) numTLBMisses / numTLBSwitches)
+                + (taggedTLB ? " (tagged)" : " (flushed)"));
+        System.out.println("Mapped files: page faults " + numMappedFaults
+                + ", write-backs " + numMappedWriteBacks);
+
         super.terminate();
     }
 
+    /**
+     * Prepare the TLB for the process with the specified ID, which is about
+     * to run. The hardware TLB has no address space identifiers, so the
+     * kernel tags each entry with the process that loaded it. Entries tagged
+     * with the incoming process are kept. Entries belonging to another process
+     * are stashed in that process's saved context instead of being discarded,
+     * and replaced with whatever the incoming process had cached in the same
+     * slot the last time it ran. Only slots that both processes use are
+     * actually evicted.
+     *
+     * <p>
+     * If <tt>VMKernel.taggedTLB</tt> is <tt>false</tt>, the whole TLB is
+     * flushed instead.
+     *
+     * @param pid the ID of the process about to run.
+     */
+    public static void switchTLBContext(int pid) {
+        Processor processor = Machine.processor();
+        numTLBSwitches++;
+
+        if (!taggedTLB) {
+            for (int i = 0; i < tlbTags.length; i++) {
+                processor.writeTLBEntry(i, invalidEntry);
+                tlbTags[i] = pid;
+            }
+            return;
+        }
+
+        TranslationEntry[] saved = tlbContexts.remove(pid);
+
+        for (int i = 0; i < tlbTags.length; i++) {
+            if (tlbTags[i] == pid)
+                continue;
+
+            if (tlbTags[i] != noOwner) {
+                TranslationEntry entry = processor.readTLBEntry(i);
+                if (entry.valid)
+                    savedContext(tlbTags[i])[i] = entry;
+            }
+
+            if (saved != null && saved[i] != null)
+                processor.writeTLBEntry(i, saved[i]);
+            else
+                processor.writeTLBEntry(i, invalidEntry);
+            tlbTags[i] = pid;
+        }
+    }
+
+    /**
+     * Invalidate any TLB entry, live or saved, that translates the specified
+     * virtual page of the specified process. Must be called whenever a page
+     * table entry changes while a copy of it may be cached.
+     *
+     * @param pid the ID of the process owning the mapping.
+     * @param vpn the virtual page whose translation changed.
+     */
+    public static void invalidateTLBEntry(int pid, int vpn) {
+        Processor processor = Machine.processor();
+
+        for (int i = 0; i < tlbTags.length; i++) {
+            if (tlbTags[i] == pid) {
+                TranslationEntry entry = processor.readTLBEntry(i);
+                if (entry.valid && entry.vpn == vpn)
+                    processor.writeTLBEntry(i, invalidEntry);
+            }
+        }
+
+        TranslationEntry[] saved = tlbContexts.get(pid);
+        if (saved != null) {
+            for (int i = 0; i < saved.length; i++) {
+                if (saved[i] != null && saved[i].vpn == vpn)
+                    saved[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Forget every TLB entry belonging to the specified process. Called when
+     * the process exits.
+     *
+     * @param pid the ID of the exiting process.
+     */
+    public static void releaseTLBContext(int pid) {
+        Processor processor = Machine.processor();
+
+        for (int i = 0; i < tlbTags.length; i++) {
+            if (tlbTags[i] == pid) {
+                processor.writeTLBEntry(i, invalidEntry);
+                tlbTags[i] = noOwner;
+            }
+        }
+
+        tlbContexts.remove(pid);
+    }
+
+    private static TranslationEntry[] savedContext(int pid) {
+        TranslationEntry[] saved = tlbContexts.get(pid);
+        if (saved == null) {
+            saved = new TranslationEntry[tlbTags.length];
+            tlbContexts.put(pid, saved);
+        }
+        return saved;
+    }
+
+    private static boolean taggedTLB;
+    private static int[] tlbTags;
+    private static final HashMap<Integer, TranslationEntry[]> tlbContexts =
+            new HashMap<>();
+    private static int numTLBSwitches = 0;
+
+    /**
+     * The number of TLB misses handled by <tt>VMProcess</tt>.
+     */
+    static int numTLBMisses = 0;
+
+    /**
+     * The number of mapped file pages read in, and written back, by
+     * <tt>VMProcess</tt>.
+     */
+    static int numMappedFaults = 0, numMappedWriteBacks = 0;
+
+    private static final int noOwner = 0;
+    private static final TranslationEntry invalidEntry = new TranslationEntry();
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,6 +5,12 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -22,6 +28,8 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
         super.saveState();
+
+        syncTLB();
     }
 
     /**
@@ -29,7 +37,7 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-        super.restoreState();
+        VMKernel.switchTLBContext(pid);
     }
 
     /**
@@ -42,13 +50,275 @@ public class VMProcess extends UserProcess {
         return super.loadSections();
     }
 
+    /**
+     * Give this process a private copy of a copy-on-write page, and drop any
+     * cached translation of the old page.
+     *
+     * @param    vpn    the virtual page to copy.
+     * @return    <tt>true</tt> if a physical page was available for the copy.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+        if (!super.breakCopyOnWrite(vpn))
+            return false;
+
+        VMKernel.invalidateTLBEntry(pid, vpn);
+        return true;
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+        while (!mappings.isEmpty())
+            unmap(mappings.get(0));
+
+        VMKernel.releaseTLBContext(pid);
+
         super.unloadSections();
     }
 
+    /**
+     * Handle a syscall exception. Adds <tt>mmap()</tt> to the syscalls
+     * handled by <tt>UserProcess</tt>, and keeps <tt>read()</tt>,
+     * <tt>write()</tt> and <tt>close()</tt> consistent with any mapping of
+     * the file descriptor.
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * </table>
+     *
+     * @param syscall the syscall number.
+     * @param a0      the first syscall argument.
+     * @param a1      the second syscall argument.
+     * @param a2      the third syscall argument.
+     * @param a3      the fourth syscall argument.
+     * @return the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+        switch (syscall) {
+            case syscallMmap:
+                return handleMmap(a0, a1);
+            case syscallRead:
+            case syscallWrite:
+                if (findMapping(a0) != null)
+                    return -1;
+                break;
+            case syscallClose:
+                FileMapping mapping = findMapping(a0);
+                if (mapping != null)
+                    unmap(mapping);
+                break;
+        }
+
+        return super.handleSyscall(syscall, a0, a1, a2, a3);
+    }
+
+    /**
+     * Handle the mmap() system call. Only records the mapping; its pages are
+     * read from the file the first time they are touched.
+     */
+    private int handleMmap(int fd, int address) {
+        OpenFile file = getOpenFile(fd);
+        if (file == null || findMapping(fd) != null ||
+                address < 0 || Processor.offsetFromAddress(address) != 0)
+            return -1;
+
+        int length = file.length();
+        if (length < 0)
+            return -1;
+
+        int firstVPN = Processor.pageFromAddress(address);
+        int mappedPages = (int) (((long) length + pageSize - 1) / pageSize);
+        if (firstVPN < numPages ||
+                (long) firstVPN + mappedPages > Processor.maxPages)
+            return -1;
+
+        for (FileMapping other : mappings) {
+            if (firstVPN < other.firstVPN + other.numPages &&
+                    other.firstVPN < firstVPN + mappedPages)
+                return -1;
+        }
+
+        mappings.add(new FileMapping(fd, file, firstVPN, mappedPages, length));
+
+        Lib.debug(dbgVM, "\tmapped fd " + fd + " at page " + firstVPN
+                + " (" + mappedPages + " pages)");
+        return length;
+    }
+
+    /**
+     * Remove a mapping, writing its dirty pages back to the file and freeing
+     * the physical pages that held them.
+     *
+     * @param    mapping    the mapping to remove.
+     */
+    private void unmap(FileMapping mapping) {
+        syncTLB();
+
+        for (TranslationEntry entry : mapping.resident.values()) {
+            VMKernel.invalidateTLBEntry(pid, entry.vpn);
+            writeBack(mapping, entry);
+            UserKernel.releasePage(entry.ppn);
+            residentPages.remove(entry);
+        }
+
+        mappings.remove(mapping);
+    }
+
+    private FileMapping findMapping(int fd) {
+        for (FileMapping mapping : mappings) {
+            if (mapping.fd == fd)
+                return mapping;
+        }
+        return null;
+    }
+
+    private FileMapping mappingForPage(int vpn) {
+        for (FileMapping mapping : mappings) {
+            if (vpn >= mapping.firstVPN &&
+                    vpn < mapping.firstVPN + mapping.numPages)
+                return mapping;
+        }
+        return null;
+    }
+
+    /**
+     * Return the translation for a mapped page, reading it from the file if it
+     * is not resident.
+     *
+     * @param    mapping    the mapping containing the page.
+     * @param    vpn    the virtual page.
+     * @return    the page's translation, or <tt>null</tt> if no physical page
+     * could be found for it.
+     */
+    private TranslationEntry faultMappedPage(FileMapping mapping, int vpn) {
+        TranslationEntry entry = mapping.resident.get(vpn);
+        if (entry != null)
+            return entry;
+
+        int ppn = UserKernel.acquirePage();
+        if (ppn == -1)
+            ppn = evictMappedPage();
+        if (ppn == -1)
+            return null;
+
+        byte[] memory = Machine.processor().getMemory();
+        int paddr = ppn * pageSize;
+        int pos = (vpn - mapping.firstVPN) * pageSize;
+
+        // the read goes through the file system's buffer cache, so a page
+        // that is cached there is only copied, never fetched from disk
+        int amount = Math.max(0, mapping.file.read(pos, memory, paddr,
+                Math.min(pageSize, mapping.length - pos)));
+        Arrays.fill(memory, paddr + amount, paddr + pageSize, (byte) 0);
+
+        entry = new TranslationEntry(vpn, ppn, true, false, false, false);
+        mapping.resident.put(vpn, entry);
+        residentPages.add(entry);
+
+        VMKernel.numMappedFaults++;
+        return entry;
+    }
+
+    /**
+     * Free a physical page by evicting one of this process's resident mapped
+     * pages, giving recently used pages a second chance. Pinned pages are
+     * never evicted.
+     *
+     * @return    the freed physical page, or -1 if there was nothing to evict.
+     */
+    private int evictMappedPage() {
+        if (residentPages.size() == pinnedPages.size())
+            return -1;
+
+        syncTLB();
+
+        TranslationEntry victim;
+        while (true) {
+            victim = residentPages.removeFirst();
+            if (!pinnedPages.contains(victim)) {
+                if (!victim.used)
+                    break;
+                victim.used = false;
+            }
+            residentPages.addLast(victim);
+        }
+
+        FileMapping mapping = mappingForPage(victim.vpn);
+        mapping.resident.remove(victim.vpn);
+        VMKernel.invalidateTLBEntry(pid, victim.vpn);
+        writeBack(mapping, victim);
+
+        Lib.debug(dbgVM, "\tevicted mapped page " + victim.vpn);
+        return victim.ppn;
+    }
+
+    private void writeBack(FileMapping mapping, TranslationEntry entry) {
+        if (!entry.dirty)
+            return;
+
+        int pos = (entry.vpn - mapping.firstVPN) * pageSize;
+        mapping.file.write(pos, Machine.processor().getMemory(),
+                entry.ppn * pageSize, Math.min(pageSize, mapping.length - pos));
+        entry.dirty = false;
+
+        VMKernel.numMappedWriteBacks++;
+    }
+
+    /**
+     * Translate a range of virtual memory into the physical memory backing
+     * it. Every mapped page in the range stays pinned until the whole range
+     * is translated, so faulting in a later page cannot evict an earlier one
+     * and leave its segment pointing at a reused physical page. Once the
+     * range is translated the pins are dropped: only this process's own
+     * faults and translations evict its mapped pages, so the segments stay
+     * valid until it next translates memory. If the range needs more mapped
+     * pages than there is physical memory, the segments cover only the prefix
+     * that fits.
+     *
+     * @param vaddr   the first byte of virtual memory in the range.
+     * @param length  the number of bytes in the range.
+     * @param writing <tt>true</tt> if the caller will store into the range.
+     * @return the segments backing the accessible prefix of the range.
+     */
+    public ArrayList<MemorySegment> getMemorySegments(int vaddr, int length,
+                                                      boolean writing) {
+        pinning = true;
+        ArrayList<MemorySegment> segments =
+                super.getMemorySegments(vaddr, length, writing);
+        pinning = false;
+        pinnedPages.clear();
+
+        return segments;
+    }
+
+    /**
+     * Find the physical page backing a virtual page. Mapped pages are faulted
+     * in from their file.
+     *
+     * @param vpn     the virtual page number.
+     * @param writing <tt>true</tt> if the page will be written.
+     * @return the physical page number, or -1 if the page cannot be accessed.
+     */
+    protected int translatePage(int vpn, boolean writing) {
+        FileMapping mapping = mappingForPage(vpn);
+        if (mapping == null)
+            return super.translatePage(vpn, writing);
+
+        TranslationEntry entry = faultMappedPage(mapping, vpn);
+        if (entry == null)
+            return -1;
+
+        if (pinning)
+            pinnedPages.add(entry);
+
+        entry.used = true;
+        if (writing)
+            entry.dirty = true;
+        return entry.ppn;
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -61,12 +331,135 @@ public class VMProcess extends UserProcess {
         Processor processor = Machine.processor();
 
         switch (cause) {
+            case Processor.exceptionTLBMiss:
+                handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+                break;
+
             default:
                 super.handleException(cause);
                 break;
         }
     }
 
+    /**
+     * Handle a TLB miss by loading the translation for the faulting address
+     * from this process's page table, or from a memory-mapped file. An
+     * invalid TLB slot is used if there is one; otherwise slots are replaced
+     * round-robin. If no physical page can be found for a mapped page, the
+     * process is killed, as it would be on running out of memory for a
+     * copy-on-write page.
+     *
+     * @param    vaddr    the virtual address that missed in the TLB.
+     */
+    private void handleTLBMiss(int vaddr) {
+        int vpn = Processor.pageFromAddress(vaddr);
+
+        TranslationEntry entry = null;
+        FileMapping mapping = mappingForPage(vpn);
+        if (mapping != null) {
+            entry = faultMappedPage(mapping, vpn);
+            if (entry == null) {
+                Lib.debug(dbgVM, "\tno physical page for mapped page " + vpn);
+                handleExit(-1);
+                return;
+            }
+        } else if (vpn < numPages && pageTable[vpn].valid) {
+            entry = pageTable[vpn];
+        }
+
+        if (entry == null) {
+            Lib.debug(dbgVM, "\tinvalid page " + vpn);
+            super.handleException(Processor.exceptionTLBMiss);
+            return;
+        }
+
+        VMKernel.numTLBMisses++;
+
+        Processor processor = Machine.processor();
+        int tlbSize = processor.getTLBSize();
+
+        int slot = -1;
+        for (int i = 0; i < tlbSize && slot == -1; i++) {
+            if (!processor.readTLBEntry(i).valid)
+                slot = i;
+        }
+        if (slot == -1) {
+            slot = nextVictim;
+            nextVictim = (nextVictim + 1) % tlbSize;
+            syncTLBEntry(processor.readTLBEntry(slot));
+        }
+
+        processor.writeTLBEntry(slot, entry);
+    }
+
+    private void syncTLB() {
+        Processor processor = Machine.processor();
+        for (int i = 0; i < processor.getTLBSize(); i++)
+            syncTLBEntry(processor.readTLBEntry(i));
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back into this process's
+     * page table, or into the translation of a resident mapped page.
+     *
+     * @param    entry    a copy of the TLB entry.
+     */
+    private void syncTLBEntry(TranslationEntry entry) {
+        if (!entry.valid)
+            return;
+
+        TranslationEntry pte = null;
+        if (entry.vpn < numPages) {
+            pte = pageTable[entry.vpn];
+        } else {
+            FileMapping mapping = mappingForPage(entry.vpn);
+            if (mapping != null)
+                pte = mapping.resident.get(entry.vpn);
+        }
+
+        if (pte == null || pte.ppn != entry.ppn)
+            return;
+
+        pte.used |= entry.used;
+        pte.dirty |= entry.dirty;
+    }
+
+    private static class FileMapping {
+        FileMapping(int fd, OpenFile file, int firstVPN, int numPages,
+                    int length) {
+            this.fd = fd;
+            this.file = file;
+            this.firstVPN = firstVPN;
+            this.numPages = numPages;
+            this.length = length;
+        }
+
+        final int fd;
+        final OpenFile file;
+        final int firstVPN, numPages, length;
+        final HashMap<Integer, TranslationEntry> resident = new HashMap<>();
+    }
+
+    private ArrayList<FileMapping> mappings = new ArrayList<>();
+    /**
+     * Resident mapped pages, in the order the eviction clock visits them.
+     */
+    private LinkedList<TranslationEntry> residentPages = new LinkedList<>();
+    /**
+     * Resident mapped pages that <tt>getMemorySegments()</tt> has handed out
+     * for the range it is translating.
+     */
+    private HashSet<TranslationEntry> pinnedPages = new HashSet<>();
+    private boolean pinning = false;
+
+    private static int nextVictim = 0;
+
+    private static final int
+            syscallRead = 6,
+            syscallWrite = 7,
+            syscallClose = 8,
+            syscallMmap = 10;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';